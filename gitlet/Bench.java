@@ -0,0 +1,513 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/** A micro-benchmark driver whose main program may be invoked as follows:
+ *      java gitlet.Bench NAME [ARGS...]
+ *  where NAME selects one of the benchmarks below. Each benchmark warms up
+ *  the code it measures before timing it, and prints one line per variant
+ *  with its average time per operation.
+ *
+ *      codec [FILES]   Compares Java serialization of a commit, and of a
+ *                      staging area of FILES files (default 1000), with
+ *                      their binary encodings.
+ *      tree [FILES]    Compares Java serialization of the snapshot of a
+ *                      directory of FILES files (default 1000) with its
+ *                      binary tree encoding.
+ *      compression [DIR]
+ *                      Compresses every file under DIR (default ".") with
+ *                      each codec and Deflate level, reporting stored size
+ *                      against compression and decompression throughput.
+ *      checkout [FILES]
+ *                      Must be run in an empty directory. Creates a
+ *                      repository with two branches that differ in every
+ *                      one of FILES files (default 10000), and times
+ *                      switching between them with 1, 2, 4, 8 and 16 I/O
+ *                      threads.
+ *      merge [FILES [CHANGED]]
+ *                      Must be run in an empty directory. Creates a
+ *                      repository of FILES files (default 5000), in
+ *                      directories of 100, with two branches that each
+ *                      change CHANGED different files of them (default half
+ *                      of them), and times merging one into the other.
+ *      fsync [N]       Must be run in an empty directory. Times adding
+ *                      and committing a one-line change to a file under
+ *                      each fsync policy, averaged over N commits
+ *                      (default 200).
+ *      diff [MB]       Times a unified diff of two versions of a text
+ *                      file of about MB megabytes (default 100) that
+ *                      differ in one line in every thousand, and of the
+ *                      file against itself.
+ *      diff3 [MB]      Times a line-by-line three-way merge of text files
+ *                      of about MB megabytes (default 100), each side
+ *                      changing a different line in every thousand, and
+ *                      reports the heap in use afterwards.
+ *      log [COMMITS]   Must be run in an empty directory. Creates a
+ *                      repository with a history of COMMITS commits
+ *                      (default 10000), and times printing all of it, and
+ *                      only its last ten commits, to a null stream.
+ *      blame [COMMITS [LINES]]
+ *                      Must be run in an empty directory. Creates a
+ *                      repository with a history of COMMITS commits
+ *                      (default 10000), one in ten of which changes a line
+ *                      of a file of LINES lines (default 10000) and the
+ *                      others another file, and times blaming the first.
+ *
+ *  @author Jiehao Guan
+ */
+public class Bench {
+
+    /** Number of untimed runs before each measurement. */
+    private static final int WARMUP = 200;
+    /** Number of timed runs of each measurement. */
+    private static final int RUNS = 1000;
+    /** Most bytes of files read as a corpus. */
+    private static final long CORPUS_LIMIT = 256L << 20;
+
+    public static void main(String... args) {
+        if (args.length == 0) {
+            System.out.println("Usage: java gitlet.Bench NAME [ARGS...]");
+            return;
+        }
+        switch (args[0]) {
+            case "codec":
+                codec(intArg(args, 1, 1000));
+                break;
+            case "tree":
+                tree(intArg(args, 1, 1000));
+                break;
+            case "compression":
+                compression(new File(args.length > 1 ? args[1] : "."));
+                break;
+            case "checkout":
+                checkout(intArg(args, 1, 10000));
+                break;
+            case "merge":
+                merge(intArg(args, 1, 5000), intArg(args, 2, intArg(args, 1, 5000) / 2));
+                break;
+            case "fsync":
+                fsync(intArg(args, 1, 200));
+                break;
+            case "diff":
+                diff(intArg(args, 1, 100));
+                break;
+            case "diff3":
+                diff3(intArg(args, 1, 100));
+                break;
+            case "log":
+                log(intArg(args, 1, 10000));
+                break;
+            case "blame":
+                blame(intArg(args, 1, 10000), intArg(args, 2, 10000));
+                break;
+            default:
+                System.out.println("No benchmark with that name exists.");
+        }
+    }
+
+    /** Compares Java serialization with the binary encodings of a commit
+     *  and of a staging area with FILES files staged. */
+    private static void codec(int files) {
+        Commit commit = new Commit("benchmark commit", Utils.sha1("parent"),
+                                   Utils.sha1("tree"));
+        byte[] serialized = Utils.serialize(commit);
+        byte[] encoded = commit.encode();
+        System.out.printf("commit: serialized %d bytes, encoded %d bytes%n",
+                          serialized.length, encoded.length);
+        time("serialize", () -> Utils.serialize(commit));
+        time("encode", commit::encode);
+        time("deserialize", () -> Utils.deserialize(serialized, Commit.class));
+        time("decode", () -> Commit.decode(ByteBuffer.wrap(encoded)));
+
+        Stage stage = new Stage();
+        for (int i = 0; i < files; i += 1) {
+            stage.add("src/file" + i + ".txt", Utils.sha1("blob " + i));
+        }
+        byte[] serializedStage = Utils.serialize(stage);
+        byte[] encodedStage = stage.encode();
+        System.out.printf("index of %d files: serialized %d bytes, encoded %d bytes%n",
+                          files, serializedStage.length, encodedStage.length);
+        time("serialize", () -> Utils.serialize(stage));
+        time("encode", stage::encode);
+        time("deserialize", () -> Utils.deserialize(serializedStage, Stage.class));
+        time("decode", () -> Stage.decode(ByteBuffer.wrap(encodedStage)));
+    }
+
+    /** Compares Java serialization of the snapshot of a directory of FILES
+     *  files, as commits used to store it, with its binary tree encoding,
+     *  and reports the size of a commit, which now names only a tree. */
+    private static void tree(int files) {
+        TreeMap<String, String> snapshots = new TreeMap<>();
+        for (int i = 0; i < files; i += 1) {
+            snapshots.put("file" + i + ".txt", Utils.sha1("blob " + i));
+        }
+        Tree tree = Tree.ofFiles(snapshots);
+        byte[] serialized = Utils.serialize(snapshots);
+        byte[] encoded = tree.encode();
+        Commit commit = new Commit("benchmark commit", Utils.sha1("parent"),
+                                   Utils.sha1((Object) encoded));
+
+        System.out.printf("directory of %d files: serialized %d bytes, encoded %d bytes; "
+                          + "commit %d bytes%n",
+                          files, serialized.length, encoded.length, commit.encode().length);
+        time("serialize", () -> Utils.serialize(snapshots));
+        time("encode", tree::encode);
+        time("deserialize", () -> Utils.deserialize(serialized, TreeMap.class));
+        time("decode", () -> Tree.decode(ByteBuffer.wrap(encoded)));
+    }
+
+    /** Reports the size against latency trade-off of each compression
+     *  setting over the files under DIR. */
+    private static void compression(File dir) {
+        List<byte[]> corpus = new ArrayList<>();
+        long total = 0;
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+                if (total >= CORPUS_LIMIT || path.toString().contains(".gitlet")) {
+                    continue;
+                }
+                byte[] contents = Files.readAllBytes(path);
+                corpus.add(contents);
+                total += contents.length;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        System.out.printf("corpus: %d files, %d bytes%n", corpus.size(), total);
+
+        String[][] settings = {{"none", "6"}, {"deflate", "1"}, {"deflate", "6"}, {"deflate", "9"}};
+        for (String[] setting : settings) {
+            System.setProperty("gitlet.compression", setting[0]);
+            System.setProperty("gitlet.compression.level", setting[1]);
+            Compressor codec = Compressor.current();
+            List<byte[]> stored = new ArrayList<>();
+            long start = System.nanoTime();
+            for (byte[] contents : corpus) {
+                stored.add(compress(codec, contents));
+            }
+            long compressNanos = System.nanoTime() - start;
+            long storedBytes = 0;
+            start = System.nanoTime();
+            for (byte[] contents : stored) {
+                storedBytes += contents.length;
+                decompress(codec, contents);
+            }
+            long decompressNanos = System.nanoTime() - start;
+            System.out.printf("  %-10s %5.1f%% of original, compress %7.1f MB/s, "
+                              + "decompress %7.1f MB/s%n",
+                              setting[0] + (codec == Compressor.NONE ? "" : "-" + setting[1]),
+                              100.0 * storedBytes / Math.max(total, 1),
+                              total * 1000.0 / Math.max(compressNanos, 1),
+                              total * 1000.0 / Math.max(decompressNanos, 1));
+        }
+    }
+
+    /** Times switching between two branches that differ in each of FILES
+     *  files, with various numbers of I/O threads. */
+    private static void checkout(int files) {
+        if (Repository.GITLET_DIR.exists()) {
+            System.out.println("Run the checkout benchmark in an empty directory.");
+            return;
+        }
+        Repository.init();
+        Repository.branch("other");
+        commitFiles(0, files, "master");
+        Repository.checkoutBranch("other");
+        commitFiles(0, files, "other");
+
+        System.out.printf("checkout of %d changed files, both ways:%n", files);
+        for (int threads = 1; threads <= 16; threads *= 2) {
+            System.setProperty("gitlet.io.threads", Integer.toString(threads));
+            time(threads + " threads", 2, 10, () -> {
+                Repository.checkoutBranch("master");
+                Repository.checkoutBranch("other");
+            });
+        }
+    }
+
+    /** Times merging two branches that each change CHANGED different files
+     *  of FILES files. */
+    private static void merge(int files, int changed) {
+        if (Repository.GITLET_DIR.exists()) {
+            System.out.println("Run the merge benchmark in an empty directory.");
+            return;
+        }
+        Repository.init();
+        commitFiles(0, files, "base");
+        Repository.branch("other");
+        commitFiles(0, changed, "master");
+        Repository.checkoutBranch("other");
+        commitFiles(files - changed, files, "other");
+        Repository.checkoutBranch("master");
+        String tip = Repository.getHeadCommit().getHash();
+
+        System.out.printf("merge of %d files, %d changed on each side:%n", files, changed);
+        long total = 0;
+        for (int i = -2; i < 10; i += 1) {
+            Repository.reset(tip);
+            long start = System.nanoTime();
+            Repository.merge("other");
+            if (i >= 0) {
+                total += System.nanoTime() - start;
+            }
+        }
+        System.out.printf("  %-24s %10.1f us/op%n", "merge", total / 1000.0 / 10);
+    }
+
+    /** Times staging and committing a small change under each fsync
+     *  policy, over N commits each. */
+    private static void fsync(int n) {
+        if (Repository.GITLET_DIR.exists()) {
+            System.out.println("Run the fsync benchmark in an empty directory.");
+            return;
+        }
+        Repository.init();
+        File file = Utils.join(Repository.CWD, "file.txt");
+        int[] version = {0};
+        System.out.println("add and commit of a one-line change:");
+        for (String policy : new String[] {"none", "objects", "all"}) {
+            System.setProperty("gitlet.fsync", policy);
+            time(policy, 5, n, () -> {
+                version[0] += 1;
+                Utils.writeContents(file, "version " + version[0] + "\n");
+                Repository.add("file.txt");
+                Repository.commit("version " + version[0]);
+            });
+        }
+    }
+
+    /** Times printing the log of a history of N commits, in full and
+     *  limited to ten commits. */
+    private static void log(int n) {
+        if (Repository.GITLET_DIR.exists()) {
+            System.out.println("Run the log benchmark in an empty directory.");
+            return;
+        }
+        System.setProperty("gitlet.fsync", "none");
+        Repository.init();
+        File file = Utils.join(Repository.CWD, "file.txt");
+        for (int i = 1; i < n; i += 1) {
+            Utils.writeContents(file, "version " + i + "\n");
+            Repository.add("file.txt");
+            Repository.commit("version " + i);
+        }
+
+        PrintStream stdout = System.out;
+        System.out.printf("log of %d commits:%n", n);
+        long[] times = new long[2];
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int i = -2; i < 10; i += 1) {
+                long start = System.nanoTime();
+                Repository.log(Integer.MAX_VALUE, Long.MIN_VALUE);
+                long middle = System.nanoTime();
+                Repository.log(10, Long.MIN_VALUE);
+                if (i >= 0) {
+                    times[0] += middle - start;
+                    times[1] += System.nanoTime() - middle;
+                }
+            }
+        } finally {
+            System.setOut(stdout);
+        }
+        System.out.printf("  %-24s %10.1f us/op%n", "full log", times[0] / 1000.0 / 10);
+        System.out.printf("  %-24s %10.1f us/op%n", "log -n 10", times[1] / 1000.0 / 10);
+    }
+
+    /** Times blaming a file of LINES lines over a history of N commits,
+     *  one in ten of which changes one of its lines. */
+    private static void blame(int n, int lines) {
+        if (Repository.GITLET_DIR.exists()) {
+            System.out.println("Run the blame benchmark in an empty directory.");
+            return;
+        }
+        System.setProperty("gitlet.fsync", "none");
+        Repository.init();
+        File file = Utils.join(Repository.CWD, "file.txt");
+        File other = Utils.join(Repository.CWD, "other.txt");
+        String[] contents = new String[lines];
+        for (int i = 0; i < lines; i += 1) {
+            contents[i] = String.format("line %d of the file%n", i);
+        }
+        for (int i = 1; i < n; i += 1) {
+            if (i == 1 || i % 10 == 0) {
+                contents[(int) ((i * 7919L) % lines)] = String.format("changed by %d%n", i);
+                Utils.writeContents(file, String.join("", contents));
+                Repository.add("file.txt");
+            } else {
+                Utils.writeContents(other, "version " + i + "\n");
+                Repository.add("other.txt");
+            }
+            Repository.commit("version " + i);
+        }
+
+        PrintStream stdout = System.out;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        System.out.printf("blame of %d lines over %d commits:%n", lines, n);
+        time("blame", 1, 3, () -> {
+            System.setOut(discard);
+            try {
+                Repository.blame("file.txt");
+            } finally {
+                System.setOut(stdout);
+            }
+        });
+    }
+
+    /** Times merging, line by line, two versions of a text file of about
+     *  MEGABYTES megabytes that each change a different line in every
+     *  thousand. */
+    private static void diff3(int megabytes) {
+        long lines = ((long) megabytes << 20) / 32;
+        withTextFiles(lines, files -> {
+            System.out.printf("diff3 of %d lines, %d changed on each side:%n",
+                              lines, (lines + 899) / 1000);
+            time("merge", 1, 3, () -> {
+                try (OutputStream out = OutputStream.nullOutputStream()) {
+                    Diff3.merge(new Diff.Lines(Diff.map(files[0])),
+                                new Diff.Lines(Diff.map(files[1])),
+                                new Diff.Lines(Diff.map(files[2])), out);
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            });
+        });
+    }
+
+    /** Times a unified diff between two versions of a text file of about
+     *  MEGABYTES megabytes that differ in one line in every thousand. */
+    private static void diff(int megabytes) {
+        long lines = ((long) megabytes << 20) / 32;
+        withTextFiles(lines, files -> {
+            System.out.printf("diff of %d lines, %d changed:%n", lines, (lines + 899) / 1000);
+            time("unified diff", 1, 3, () -> {
+                try (OutputStream out = OutputStream.nullOutputStream()) {
+                    Diff.unified(out, "file", new Diff.Lines(Diff.map(files[0])),
+                                 new Diff.Lines(Diff.map(files[1])));
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            });
+            time("identical files", 1, 3, () -> {
+                try (OutputStream out = OutputStream.nullOutputStream()) {
+                    Diff.unified(out, "file", new Diff.Lines(Diff.map(files[0])),
+                                 new Diff.Lines(Diff.map(files[0])));
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            });
+        });
+    }
+
+    /** Calls OP with three temporary text files of LINES 31-character
+     *  lines: a base version, and two others that each change a different
+     *  line in every thousand of it. Reports the heap in use afterwards,
+     *  and deletes the files. */
+    private static void withTextFiles(long lines, Consumer<File[]> op) {
+        try {
+            Path dir = Files.createTempDirectory("bench");
+            File[] files = {dir.resolve("base").toFile(), dir.resolve("ours").toFile(),
+                            dir.resolve("theirs").toFile()};
+            try (OutputStream b = new BufferedOutputStream(new FileOutputStream(files[0]));
+                 OutputStream o = new BufferedOutputStream(new FileOutputStream(files[1]));
+                 OutputStream t = new BufferedOutputStream(new FileOutputStream(files[2]))) {
+                for (long i = 0; i < lines; i += 1) {
+                    byte[] line = String.format("%030d%n", i).getBytes(StandardCharsets.UTF_8);
+                    b.write(line);
+                    o.write(i % 1000 == 100 ? "ours\n".getBytes(StandardCharsets.UTF_8) : line);
+                    t.write(i % 1000 == 600 ? "theirs\n".getBytes(StandardCharsets.UTF_8) : line);
+                }
+            }
+            op.accept(files);
+            Runtime runtime = Runtime.getRuntime();
+            System.out.printf("  %-24s %10.1f MB%n", "heap in use",
+                              (runtime.totalMemory() - runtime.freeMemory()) / 1048576.0);
+            for (File file : files) {
+                file.delete();
+            }
+            Files.delete(dir);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Writes the working files numbered FROM to TO - 1, in directories of
+     *  100, with contents that mention LABEL, stages them all and commits
+     *  them. */
+    private static void commitFiles(int from, int to, String label) {
+        Stage stage = Stage.load();
+        for (int i = from; i < to; i += 1) {
+            String name = "dir" + i / 100 + "/file" + i + ".txt";
+            File file = Utils.join(Repository.CWD, name);
+            file.getParentFile().mkdirs();
+            Utils.writeContents(file, label + " version of file " + i + "\n");
+            String hash = ObjectStore.hashBlob(file);
+            ObjectStore.writeBlob(hash, file);
+            stage.add(name, hash);
+        }
+        stage.save();
+        Repository.commit(label);
+    }
+
+    /** Returns CONTENTS compressed with CODEC. */
+    private static byte[] compress(Compressor codec, byte[] contents) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (OutputStream out = codec.compress(result)) {
+            out.write(contents);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result.toByteArray();
+    }
+
+    /** Returns CONTENTS decompressed with CODEC. */
+    private static byte[] decompress(Compressor codec, byte[] contents) {
+        try (InputStream in = codec.decompress(new ByteArrayInputStream(contents))) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Runs OP WARMUP times, then prints its average time over RUNS runs,
+     *  labelled NAME. */
+    private static void time(String name, Runnable op) {
+        time(name, WARMUP, RUNS, op);
+    }
+
+    /** Runs OP WARMUPS times, then prints its average time over N runs,
+     *  labelled NAME. */
+    private static void time(String name, int warmups, int n, Runnable op) {
+        for (int i = 0; i < warmups; i += 1) {
+            op.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i += 1) {
+            op.run();
+        }
+        double micros = (System.nanoTime() - start) / 1000.0 / n;
+        System.out.printf("  %-24s %10.1f us/op%n", name, micros);
+    }
+
+    /** Returns ARGS[K] as an integer, or DEFAULTVALUE if it is missing. */
+    private static int intArg(String[] args, int k, int defaultValue) {
+        return args.length > k ? Integer.parseInt(args[k]) : defaultValue;
+    }
+}
@@ -0,0 +1,262 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static gitlet.Utils.join;
+
+/** Bloom filters of the paths each commit changed, stored under
+ *  .gitlet/changed-paths.
+ *
+ *  The filter of a commit holds every file whose blob differs between its
+ *  tree and that of its first parent (an empty tree for the initial
+ *  commit), with BITS_PER_PATH bits per path and HASHES bit positions per
+ *  path. A commit that changed more than MAX_PATHS files gets no filter,
+ *  recorded as size TOO_MANY, and must always be checked.
+ *
+ *  The filters are stored back to back in the file filters, and the file
+ *  index is a 4-byte header followed by one fixed-width record per commit,
+ *  in the order the commits were saved:
+ *      raw id (20 bytes) | offset of its filter (8) | filter size (4)
+ *  A commit is added by appending its filter, then its record, after
+ *  reading only the last record, so saving a commit takes the same time
+ *  however long the history. Readers read the index before the filters,
+ *  so every record they see has its filter. A filter whose record was
+ *  never written, after a crash, is never read, and a partial record is
+ *  dropped by the next append.
+ *
+ *  A filter may say that a commit changed a path it did not, but never the
+ *  reverse, so a history search loads only the commits whose filters admit
+ *  the path, and most commits are ruled out from the filters alone. A
+ *  missing directory is built from the commits in the object store by
+ *  ObjectStore.migrate, under the repository lock; readers, which do not
+ *  hold it, never write it.
+ *
+ *  @author Jiehao Guan
+ */
+class ChangedPaths {
+
+    /** The directory holding the filters and their index. */
+    static final File PATHS_DIR = join(Repository.GITLET_DIR, "changed-paths");
+
+    /** Magic bytes and version that start the index. */
+    private static final byte[] INDEX_HEADER = {'g', 'l', 'b', 2};
+    /** Size of a raw commit id, and of an index record. */
+    private static final int ID_SIZE = Utils.UID_LENGTH / 2;
+    private static final int RECORD_SIZE = ID_SIZE + 12;
+    /** Bits of filter per changed path, and bit positions set per path,
+     *  which give about one false positive in a hundred. */
+    private static final int BITS_PER_PATH = 10;
+    private static final int HASHES = 7;
+    /** Most paths a commit's filter holds. */
+    private static final int MAX_PATHS = 512;
+    /** Filter size standing for a commit that changed too many paths. */
+    private static final int TOO_MANY = -1;
+
+    /** The contents of the index and of the filters file. */
+    private final ByteBuffer _index;
+    private final ByteBuffer _filters;
+    /** Hex commit id -> offset of its record in _index. */
+    private final Map<String, Integer> _records;
+
+    /** The filters in FILTERS, whose index is INDEX. */
+    private ChangedPaths(ByteBuffer index, ByteBuffer filters) {
+        for (int i = 0; i < INDEX_HEADER.length; i += 1) {
+            if (index.limit() < INDEX_HEADER.length || index.get(i) != INDEX_HEADER[i]) {
+                throw Utils.error("The changed-paths index is corrupt.");
+            }
+        }
+        _index = index;
+        _filters = filters;
+        _records = new HashMap<>();
+        byte[] raw = new byte[ID_SIZE];
+        for (int offset = INDEX_HEADER.length; offset + RECORD_SIZE <= index.limit();
+             offset += RECORD_SIZE) {
+            index.get(offset, raw);
+            _records.put(ObjectStore.toHex(raw, 0), offset);
+        }
+    }
+
+    /** Returns the filters of this repository. If the directory is
+     *  missing, no commit has a filter, so every commit must be checked. */
+    static ChangedPaths load() {
+        File index = join(PATHS_DIR, "index");
+        if (!index.exists()) {
+            return new ChangedPaths(ByteBuffer.wrap(INDEX_HEADER.clone()), ByteBuffer.allocate(0));
+        }
+        ByteBuffer records = ByteBuffer.wrap(Utils.readContents(index));
+        File filters = join(PATHS_DIR, "filters");
+        return new ChangedPaths(records, ByteBuffer.wrap(
+            filters.exists() ? Utils.readContents(filters) : new byte[0]));
+    }
+
+    /** Records the filter of COMMIT, whose id is HASH, unless it is the
+     *  last one recorded. The caller must hold the repository lock. */
+    static void add(String hash, Commit commit) {
+        File index = join(PATHS_DIR, "index");
+        if (!index.exists()) {
+            rebuild();
+            return;
+        }
+        if (hash.equals(lastId(index))) {
+            return;
+        }
+        byte[] filter = filter(commit);
+        long offset = append(join(PATHS_DIR, "filters"), filter == null ? new byte[0] : filter);
+        byte[] record = record(hash, offset, filter);
+        try (FileOutputStream out = new FileOutputStream(index, true)) {
+            long size = out.getChannel().size();
+            long partial = (size - INDEX_HEADER.length) % RECORD_SIZE;
+            if (partial != 0) {
+                /* Cut short by a crash during an append. */
+                out.getChannel().truncate(size - partial);
+            }
+            out.write(record);
+            if (Fsync.ALL.enabled()) {
+                out.getFD().sync();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Rewrites the filters and their index from the commits in the object
+     *  store, taken in the order of the commit graph as they would have
+     *  been saved, building them in a temporary directory that then
+     *  replaces the old one. The caller must hold the repository lock. */
+    static void rebuild() {
+        Codec.Writer index = new Codec.Writer(INDEX_HEADER.length);
+        index.putBytes(INDEX_HEADER);
+        Codec.Writer filters = new Codec.Writer(0);
+        long offset = 0;
+        try (CommitWalker walker = new CommitWalker(CommitGraph.load().hashes().iterator())) {
+            while (walker.hasNext()) {
+                Map.Entry<String, Commit> entry = walker.next();
+                byte[] filter = filter(entry.getValue());
+                index.putBytes(record(entry.getKey(), offset, filter));
+                if (filter != null) {
+                    filters.putBytes(filter);
+                    offset += filter.length;
+                }
+            }
+        }
+
+        File temp = join(Repository.TMP_DIR, "changed-paths");
+        Utils.deleteDirectory(temp);
+        temp.mkdir();
+        Utils.writeContents(join(temp, "filters"), filters.toByteArray());
+        Utils.writeContents(join(temp, "index"), index.toByteArray());
+        Utils.deleteDirectory(PATHS_DIR);
+        try {
+            Files.move(temp.toPath(), PATHS_DIR.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns false if the commit HASH certainly did not change the file
+     *  PATH with respect to its first parent, and true if it may have. */
+    boolean mayHaveChanged(String hash, String path) {
+        Integer record = _records.get(hash);
+        if (record == null) {
+            return true;
+        }
+        int size = _index.getInt(record + ID_SIZE + 8);
+        if (size == TOO_MANY) {
+            return true;
+        }
+        if (size == 0) {
+            return false;
+        }
+        int offset = (int) _index.getLong(record + ID_SIZE);
+        long bits = size * 8L;
+        long[] hashes = hashes(path);
+        for (int i = 0; i < HASHES; i += 1) {
+            long bit = Math.floorMod(hashes[0] + i * hashes[1], bits);
+            if ((_filters.get(offset + (int) (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the filter of the paths COMMIT changed, or null if it
+     *  changed more than MAX_PATHS. */
+    private static byte[] filter(Commit commit) {
+        String parent = commit.getParent();
+        String oldTree = parent == null ? null : Commit.load(parent).getTree();
+        List<String> changed = new ArrayList<>();
+        Tree.diff(oldTree, commit.getTree(), (path, oldBlob, newBlob) -> changed.add(path));
+        if (changed.size() > MAX_PATHS) {
+            return null;
+        }
+        byte[] result = new byte[(changed.size() * BITS_PER_PATH + 7) / 8];
+        long bits = result.length * 8L;
+        for (String path : changed) {
+            long[] hashes = hashes(path);
+            for (int i = 0; i < HASHES; i += 1) {
+                long bit = Math.floorMod(hashes[0] + i * hashes[1], bits);
+                result[(int) (bit >>> 3)] |= 1 << (bit & 7);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the index record of the commit HASH, whose FILTER, which is
+     *  null if it changed too many paths, starts at OFFSET. */
+    private static byte[] record(String hash, long offset, byte[] filter) {
+        Codec.Writer out = new Codec.Writer(RECORD_SIZE);
+        out.putHash(hash);
+        out.putLong(offset);
+        out.putInt(filter == null ? TOO_MANY : filter.length);
+        return out.toByteArray();
+    }
+
+    /** Returns the id of the last whole record of INDEX, or null if it has
+     *  none. */
+    private static String lastId(File index) {
+        try (RandomAccessFile file = new RandomAccessFile(index, "r")) {
+            long count = (file.length() - INDEX_HEADER.length) / RECORD_SIZE;
+            if (count <= 0) {
+                return null;
+            }
+            byte[] raw = new byte[ID_SIZE];
+            file.seek(INDEX_HEADER.length + (count - 1) * RECORD_SIZE);
+            file.readFully(raw);
+            return ObjectStore.toHex(raw, 0);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the two hashes of PATH from which its bit positions are
+     *  derived, taken from its SHA-1 so that they never change. */
+    private static long[] hashes(String path) {
+        ByteBuffer digest = ByteBuffer.wrap(ObjectStore.toRaw(Utils.sha1(path)));
+        return new long[] {digest.getLong(), digest.getLong() | 1};
+    }
+
+    /** Appends BYTES to FILE, syncing it if the fsync policy syncs all
+     *  writes, and returns the offset at which they were written. */
+    private static long append(File file, byte[] bytes) {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            long offset = out.getChannel().size();
+            out.write(bytes);
+            if (Fsync.ALL.enabled()) {
+                out.getFD().sync();
+            }
+            return offset;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** Helpers for the binary encodings of commits and the staging area.
+ *
+ *  All multi-byte integers are big-endian. Strings are a four-byte length
+ *  followed by that many bytes of UTF-8, and object ids are written as
+ *  their 20 raw bytes. Values are decoded straight from a ByteBuffer, so
+ *  reading an object needs no intermediate streams.
+ *
+ *  @author Jiehao Guan
+ */
+class Codec {
+
+    /** First two bytes of a stream written by ObjectOutputStream, which is
+     *  how commits and the index were stored before this encoding. */
+    private static final int JAVA_STREAM_MAGIC = 0xACED;
+
+    /** Returns true if BUF, from its position on, holds a Java serialization
+     *  stream rather than one of our encodings. */
+    static boolean isJavaSerialized(ByteBuffer buf) {
+        return buf.remaining() >= 2
+            && (buf.getShort(buf.position()) & 0xffff) == JAVA_STREAM_MAGIC;
+    }
+
+    /** Returns the remaining bytes of BUF, without moving its position. */
+    static byte[] remaining(ByteBuffer buf) {
+        byte[] result = new byte[buf.remaining()];
+        buf.duplicate().get(result);
+        return result;
+    }
+
+    /** Reads a string from BUF. */
+    static String getString(ByteBuffer buf) {
+        int len = buf.getInt();
+        String result;
+        if (buf.hasArray()) {
+            result = new String(buf.array(), buf.arrayOffset() + buf.position(), len,
+                                StandardCharsets.UTF_8);
+            buf.position(buf.position() + len);
+        } else {
+            byte[] bytes = new byte[len];
+            buf.get(bytes);
+            result = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return result;
+    }
+
+    /** Reads an object id from BUF. */
+    static String getHash(ByteBuffer buf) {
+        byte[] raw = new byte[Utils.UID_LENGTH / 2];
+        buf.get(raw);
+        return ObjectStore.toHex(raw, 0);
+    }
+
+    /** A growable buffer that values are encoded into. */
+    static class Writer {
+
+        /** The encoded bytes are _bytes[0 .. _size - 1]. */
+        private byte[] _bytes;
+        private int _size;
+
+        /** A Writer whose buffer initially holds CAPACITY bytes. */
+        Writer(int capacity) {
+            _bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        void putByte(int b) {
+            ensure(1);
+            _bytes[_size] = (byte) b;
+            _size += 1;
+        }
+
+        void putInt(int v) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                _bytes[_size] = (byte) (v >>> shift);
+                _size += 1;
+            }
+        }
+
+        void putLong(long v) {
+            putInt((int) (v >>> 32));
+            putInt((int) v);
+        }
+
+        void putBytes(byte[] b) {
+            putBytes(b, 0, b.length);
+        }
+
+        void putBytes(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, _bytes, _size, len);
+            _size += len;
+        }
+
+        void putString(String s) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            putInt(utf8.length);
+            putBytes(utf8);
+        }
+
+        void putHash(String hash) {
+            putBytes(ObjectStore.toRaw(hash));
+        }
+
+        /** Returns the bytes written so far. */
+        byte[] toByteArray() {
+            return Arrays.copyOf(_bytes, _size);
+        }
+
+        /** Makes room for N more bytes. */
+        private void ensure(int n) {
+            if (_size + n > _bytes.length) {
+                _bytes = Arrays.copyOf(_bytes, Math.max(_bytes.length * 2, _size + n));
+            }
+        }
+    }
+}
@@ -1,32 +1,65 @@
 package gitlet;
 
 // TODO: any imports you need here
-import java.io.File;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.function.BiConsumer;
 
 /** Represents a gitlet commit object.
+ *
+ *  Commits are stored in a versioned binary encoding (see encode), and a
+ *  commit's id is the SHA-1 hash of that encoding, so it does not depend
+ *  on the JVM that wrote it. A commit names the root Tree of its snapshot,
+ *  so commits share the trees of unchanged directories, and the flat map
+ *  from file path to blob id is only built when asked for.
+ *
+ *  Commits written by earlier versions, which list every file themselves,
+ *  either in encoding version 1 or with Java serialization, keep their ids
+ *  and are still read transparently; their trees are built when needed.
  *
  *  @author Jiehao Guan
  */
-public class Commit implements Serializable {
+public class Commit implements Serializable, Dumpable {
+
+    /** Pinned so that commits written by earlier versions still load. */
+    private static final long serialVersionUID = -4022805103027298456L;
+
+    /** Version byte that starts the current encoding of a commit. */
+    private static final int ENCODING_VERSION = 2;
+    /** Version of the encoding that listed every file of the snapshot. */
+    private static final int ENCODING_VERSION_FLAT = 1;
+    /** Flag bits recording which parents an encoded commit has. */
+    private static final int HAS_PARENT = 1;
+    private static final int HAS_SECOND_PARENT = 2;
 
     /** The message of this Commit. */
     private String message;
     private String parent;
     private String secondParent;
     private java.util.Date timestamp;
+    /** Map of file path -> blob id, for a commit written before trees;
+     *  null for a commit with a tree. */
     private TreeMap<String, String> snapshots;
+    /** The id of the root tree, or null for a commit written before trees. */
+    private String tree;
+    /** The root tree built from snapshots, for a commit without one. */
+    private transient String builtTree;
 
-    public Commit(String message, String parent, TreeMap<String, String> snapshots) {
+    public Commit(String message, String parent, String tree) {
         this.message = message;
         this.parent = parent;
-        this.snapshots = snapshots;
+        this.tree = tree;
         this.timestamp = (parent == null) ? new java.util.Date(0) : new java.util.Date();
     }
 
+    /** A commit whose fields are filled in by decode. */
+    private Commit() {
+    }
+
     public String getMessage() { return message; }
 
     public String getParent() { return parent; }
@@ -35,8 +68,49 @@ public class Commit implements Serializable {
 
     public java.util.Date getTimestamp() { return timestamp; }
 
+    /** Returns the snapshot of this commit, mapping each file path to its
+     *  blob id. For a commit with a tree, the map is flattened from it anew
+     *  on each call, so that the commit, which the object cache keeps for
+     *  the size of its encoding, does not hold it; callers that need only
+     *  some files should use getBlob or Tree.diff. */
     public Map<String, String> getSnapshots() {
-        return Collections.unmodifiableMap(snapshots);
+        if (snapshots != null) {
+            return Collections.unmodifiableMap(snapshots);
+        }
+        TreeMap<String, String> files = new TreeMap<>();
+        Tree.flatten(tree, "", files);
+        return files;
+    }
+
+    /** Returns the blob id of the file PATH in the snapshot of this commit,
+     *  or null if it has no such file. */
+    public String getBlob(String path) {
+        if (snapshots != null) {
+            return snapshots.get(path);
+        }
+        return Tree.lookup(tree, path);
+    }
+
+    /** Reports to VISITOR each file of the snapshot of this commit and its
+     *  blob id, skipping the trees in SEEN and adding those read to it, as
+     *  for Tree.walk. A commit written before trees reports every file. */
+    void walk(Set<String> seen, BiConsumer<String, String> visitor) {
+        if (snapshots != null) {
+            snapshots.forEach(visitor);
+        } else {
+            Tree.walk(tree, "", seen, visitor);
+        }
+    }
+
+    /** Returns the id of the root tree of the snapshot of this commit. */
+    public synchronized String getTree() {
+        if (tree != null) {
+            return tree;
+        }
+        if (builtTree == null) {
+            builtTree = Tree.write(snapshots);
+        }
+        return builtTree;
     }
 
     public boolean isMergeCommit() {
@@ -49,15 +123,109 @@ public class Commit implements Serializable {
 
     /** Returns the SHA-1 hash of this commit object. */
     public String getHash() {
-        // We serialize the entire commit object to bytes, then hash those bytes
-        return Utils.sha1((Object) Utils.serialize(this));
+        // We encode the entire commit object to bytes, then hash those bytes
+        return Utils.sha1((Object) encode());
     }
 
-    /** Saves this commit to the objects directory. */
+    /** Saves this commit to the objects directory and records it in the
+     *  commit index, commit graph, message index and changed-paths
+     *  filters. */
     public void save() {
-        String hash = getHash();
+        byte[] contents = encode();
         // The filename is the SHA-1 hash
-        File commitFile = Utils.join(Repository.OBJECTS_DIR, hash);
-        Utils.writeObject(commitFile, this);
+        String hash = Utils.sha1((Object) contents);
+        ObjectStore.write(hash, ObjectStore.COMMIT, contents);
+        ObjectStore.addCommit(hash);
+        CommitGraph.add(hash, this);
+        MessageIndex.add(hash, message);
+        ChangedPaths.add(hash, this);
+    }
+
+    /** Loads the commit with the given full HASH from the objects directory,
+     *  or from the object cache if it was loaded before. */
+    public static Commit load(String hash) {
+        Commit result = ObjectCache.instance().get(hash, Commit.class);
+        if (result == null) {
+            ByteBuffer encoded = ObjectStore.readBuffer(hash, ObjectStore.COMMIT);
+            int size = encoded.remaining();
+            result = decode(encoded);
+            ObjectCache.instance().put(hash, result, size);
+        }
+        return result;
+    }
+
+    @Override
+    public void dump() {
+        System.out.printf("message: %s%ntimestamp: %d%nparent: %s%n", message,
+                          timestamp.getTime(), parent);
+        if (secondParent != null) {
+            System.out.printf("second parent: %s%n", secondParent);
+        }
+        if (tree != null) {
+            System.out.printf("tree: %s%n", tree);
+        } else {
+            System.out.printf("files: %s%n", snapshots);
+        }
+    }
+
+    /** Returns the encoding of this commit:
+     *      version (1 byte) | timestamp in ms (8) | parent flags (1) |
+     *      parent ids (20 each, if present) | message | root tree id (20).
+     *  A commit read from encoding version 1 is encoded as it was read,
+     *  with number of files (4) | (file name | blob id) for each file in
+     *  place of the tree, so that it keeps its id. */
+    byte[] encode() {
+        Codec.Writer out = new Codec.Writer(
+            64 + message.length() + (tree == null ? snapshots.size() * 48 : 0));
+        out.putByte(tree == null ? ENCODING_VERSION_FLAT : ENCODING_VERSION);
+        out.putLong(timestamp.getTime());
+        out.putByte((parent == null ? 0 : HAS_PARENT)
+                    | (secondParent == null ? 0 : HAS_SECOND_PARENT));
+        if (parent != null) {
+            out.putHash(parent);
+        }
+        if (secondParent != null) {
+            out.putHash(secondParent);
+        }
+        out.putString(message);
+        if (tree != null) {
+            out.putHash(tree);
+        } else {
+            out.putInt(snapshots.size());
+            for (Map.Entry<String, String> entry : snapshots.entrySet()) {
+                out.putString(entry.getKey());
+                out.putHash(entry.getValue());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** Returns the commit encoded in BUF, which may also be a commit written
+     *  with Java serialization by an earlier version. */
+    static Commit decode(ByteBuffer buf) {
+        if (Codec.isJavaSerialized(buf)) {
+            return Utils.deserialize(Codec.remaining(buf), Commit.class);
+        }
+        int version = buf.get();
+        if (version != ENCODING_VERSION && version != ENCODING_VERSION_FLAT) {
+            throw Utils.error("Unknown commit encoding %d.", version);
+        }
+        Commit result = new Commit();
+        result.timestamp = new java.util.Date(buf.getLong());
+        int flags = buf.get();
+        result.parent = (flags & HAS_PARENT) == 0 ? null : Codec.getHash(buf);
+        result.secondParent = (flags & HAS_SECOND_PARENT) == 0 ? null : Codec.getHash(buf);
+        result.message = Codec.getString(buf);
+        if (version == ENCODING_VERSION) {
+            result.tree = Codec.getHash(buf);
+            return result;
+        }
+        int n = buf.getInt();
+        result.snapshots = new TreeMap<>();
+        for (int i = 0; i < n; i += 1) {
+            String fileName = Codec.getString(buf);
+            result.snapshots.put(fileName, Codec.getHash(buf));
+        }
+        return result;
     }
 }
@@ -0,0 +1,475 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import static gitlet.Utils.join;
+
+/** The commit graph, stored in .gitlet/commit-graph.
+ *
+ *  The file is a 4-byte header followed by one fixed-width record per
+ *  commit, in the order the commits were saved:
+ *      raw id (20 bytes) | first parent (4) | second parent (4) |
+ *      generation (4)
+ *  where parents are the positions of their own records (-1 for none), so
+ *  a parent is always recorded before its children, and the generation of
+ *  a commit is one more than the largest generation of its parents (1 for
+ *  the initial commit). Records are only ever appended, as commits are
+ *  saved; a commit whose only parent is the last record is appended after
+ *  reading just that record, so committing takes the same time however
+ *  long the history. A file that ends in a partial record or lacks the
+ *  parent of a commit being added is rebuilt from the commits in the
+ *  object store by add, which runs under the repository lock. A missing
+ *  file is built the same way by ObjectStore.migrate, also under the lock;
+ *  readers, which do not hold it, never write the file.
+ *
+ *  The graph lets ancestry questions be answered without loading commits:
+ *  since a commit's generation exceeds that of all its ancestors, a walk
+ *  that visits commits in order of decreasing generation can stop as soon
+ *  as nothing left to visit can change its answer.
+ *
+ *  @author Jiehao Guan
+ */
+class CommitGraph {
+
+    /** The commit-graph file. */
+    static final File GRAPH_FILE = join(Repository.GITLET_DIR, "commit-graph");
+
+    /** Magic bytes and version that start the file. */
+    private static final byte[] GRAPH_HEADER = {'g', 'l', 'g', 1};
+    /** Size of a raw commit id, and of a record. */
+    private static final int ID_SIZE = Utils.UID_LENGTH / 2;
+    private static final int RECORD_SIZE = ID_SIZE + 12;
+    /** Record position standing for a missing parent. */
+    private static final int NONE = -1;
+
+    /** Flags marking commits during mergeBase: reachable from the first
+     *  tip, from the second, known not to be a best common ancestor, and
+     *  already chosen as a candidate. */
+    private static final int FROM_FIRST = 1;
+    private static final int FROM_SECOND = 2;
+    private static final int STALE = 4;
+    private static final int RESULT = 8;
+
+    /** The contents of the file, or of its header and its records from
+     *  _first on. */
+    private final ByteBuffer _data;
+    /** Position of the first record in _data. */
+    private final int _first;
+    /** Number of records, counting any before _first. */
+    private final int _count;
+    /** Hex id -> position of its record, built when first needed. */
+    private Map<String, Integer> _positions;
+
+    /** A graph whose records are the contents of DATA. */
+    private CommitGraph(ByteBuffer data) {
+        this(data, 0);
+    }
+
+    /** A graph whose records from FIRST on are those in DATA after the
+     *  header. */
+    private CommitGraph(ByteBuffer data, int first) {
+        for (int i = 0; i < GRAPH_HEADER.length; i += 1) {
+            if (data.get(i) != GRAPH_HEADER[i]) {
+                throw Utils.error("The commit graph is corrupt.");
+            }
+        }
+        _data = data;
+        _first = first;
+        _count = first + (data.limit() - GRAPH_HEADER.length) / RECORD_SIZE;
+    }
+
+    /** Returns the commit graph of this repository. If the file is
+     *  missing, the graph is built in memory, and the file left alone. */
+    static CommitGraph load() {
+        if (!GRAPH_FILE.exists()) {
+            return new CommitGraph(ByteBuffer.wrap(build()));
+        }
+        return new CommitGraph(ByteBuffer.wrap(Utils.readContents(GRAPH_FILE)));
+    }
+
+    /** Appends the record of COMMIT, whose id is HASH and whose parents
+     *  are already recorded, unless it is there already. */
+    static void add(String hash, Commit commit) {
+        /* A file whose records are not whole was cut short by a crash
+         * during an append, and would be misaligned by another one. */
+        if (!GRAPH_FILE.exists()
+            || (GRAPH_FILE.length() - GRAPH_HEADER.length) % RECORD_SIZE != 0) {
+            rebuild();
+            return;
+        }
+        /* A commit made on top of the newest record, as nearly all are,
+         * is appended after reading just that record. */
+        int count = (int) ((GRAPH_FILE.length() - GRAPH_HEADER.length) / RECORD_SIZE);
+        if (count > 0 && commit.getParent() != null && commit.getSecondParent() == null) {
+            CommitGraph last = new CommitGraph(ByteBuffer.wrap(readLast()), count - 1);
+            String lastHash = last.hashAt(count - 1);
+            if (lastHash.equals(hash)) {
+                return;
+            }
+            if (lastHash.equals(commit.getParent())) {
+                append(GRAPH_FILE, record(ObjectStore.toRaw(hash), count - 1, NONE,
+                                          1 + last.generation(count - 1)));
+                return;
+            }
+        }
+        CommitGraph graph = load();
+        if (graph.indexOf(hash) != NONE) {
+            return;
+        }
+        int first = graph.indexOf(commit.getParent());
+        int second = graph.indexOf(commit.getSecondParent());
+        if (first == NONE && commit.getParent() != null
+            || second == NONE && commit.getSecondParent() != null) {
+            /* The graph has lost track of some commit; start it afresh. */
+            rebuild();
+            return;
+        }
+        int generation = 1 + Math.max(graph.generation(first), graph.generation(second));
+        append(GRAPH_FILE, record(ObjectStore.toRaw(hash), first, second, generation));
+    }
+
+    /** Returns the header of the file followed by its last record. */
+    private static byte[] readLast() {
+        byte[] result = new byte[GRAPH_HEADER.length + RECORD_SIZE];
+        try (RandomAccessFile file = new RandomAccessFile(GRAPH_FILE, "r")) {
+            file.readFully(result, 0, GRAPH_HEADER.length);
+            file.seek(file.length() - RECORD_SIZE);
+            file.readFully(result, GRAPH_HEADER.length, RECORD_SIZE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result;
+    }
+
+    /** Rewrites the file from the commits in the object store. The caller
+     *  must hold the repository lock. */
+    static void rebuild() {
+        Utils.writeContents(GRAPH_FILE, build());
+    }
+
+    /** Returns the contents of the file, built from the commits in the
+     *  object store. Commits are recorded oldest first, as they would have
+     *  been saved, except that a commit always follows its ancestors, even
+     *  one whose clock ran behind theirs. */
+    private static byte[] build() {
+        Map<String, Commit> commits = new HashMap<>();
+        try (CommitWalker walker = new CommitWalker(ObjectStore.allCommits().iterator())) {
+            while (walker.hasNext()) {
+                Map.Entry<String, Commit> entry = walker.next();
+                commits.put(entry.getKey(), entry.getValue());
+            }
+        }
+        List<String> hashes = new ArrayList<>(commits.keySet());
+        hashes.sort(Comparator.comparing((String hash) -> commits.get(hash).getTimestamp())
+                    .thenComparing(Comparator.naturalOrder()));
+        Map<String, Integer> positions = new HashMap<>();
+        Codec.Writer out = new Codec.Writer(GRAPH_HEADER.length + hashes.size() * RECORD_SIZE);
+        out.putBytes(GRAPH_HEADER);
+        List<Integer> generations = new ArrayList<>();
+        for (String hash : hashes) {
+            /* Record the ancestors of HASH before HASH itself, walking an
+             * explicit stack so long histories do not overflow. */
+            List<String> stack = new ArrayList<>();
+            stack.add(hash);
+            while (!stack.isEmpty()) {
+                int top = stack.size() - 1;
+                String current = stack.get(top);
+                if (positions.containsKey(current)) {
+                    stack.remove(top);
+                    continue;
+                }
+                Commit commit = commits.computeIfAbsent(current, Commit::load);
+                String pending = null;
+                for (String parent : new String[] {commit.getParent(), commit.getSecondParent()}) {
+                    if (parent != null && !positions.containsKey(parent)) {
+                        pending = parent;
+                    }
+                }
+                if (pending != null) {
+                    stack.add(pending);
+                    continue;
+                }
+                int first = parentPosition(positions, commit.getParent());
+                int second = parentPosition(positions, commit.getSecondParent());
+                int generation = 1 + Math.max(first == NONE ? 0 : generations.get(first),
+                                              second == NONE ? 0 : generations.get(second));
+                positions.put(current, generations.size());
+                generations.add(generation);
+                out.putBytes(record(ObjectStore.toRaw(current), first, second, generation));
+                stack.remove(top);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** Returns the best common ancestor of the commits FIRST and SECOND:
+     *  one that is an ancestor of both (or one of them), and is not an
+     *  ancestor of any other such commit. If there are several, as after a
+     *  criss-cross merge, returns the one with the largest generation, and
+     *  of those the one recorded first. Returns null if the commits share
+     *  no history. Only commits newer than the result, plus those needed to
+     *  prove it, are visited. */
+    String mergeBase(String first, String second) {
+        int a = require(first);
+        int b = require(second);
+        if (a == b) {
+            return first;
+        }
+        List<Integer> candidates = paintDown(a, b);
+        List<Integer> best = new ArrayList<>();
+        for (int candidate : candidates) {
+            boolean redundant = false;
+            for (int other : candidates) {
+                if (other != candidate && generation(other) > generation(candidate)
+                    && isAncestor(candidate, other)) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) {
+                best.add(candidate);
+            }
+        }
+        if (best.isEmpty()) {
+            return null;
+        }
+        int result = best.get(0);
+        for (int candidate : best) {
+            if (generation(candidate) > generation(result)
+                || generation(candidate) == generation(result) && candidate < result) {
+                result = candidate;
+            }
+        }
+        return hashAt(result);
+    }
+
+    /** Returns true if the commit ANCESTOR is an ancestor of, or is, the
+     *  commit DESCENDANT. */
+    boolean isAncestor(String ancestor, String descendant) {
+        return isAncestor(require(ancestor), require(descendant));
+    }
+
+    /** Returns the ids of every recorded commit, in the order their
+     *  records were written. */
+    List<String> hashes() {
+        List<String> result = new ArrayList<>(_count - _first);
+        for (int i = _first; i < _count; i += 1) {
+            result.add(hashAt(i));
+        }
+        return result;
+    }
+
+    /** Sorts HASHES, ids of commits, into the order in which their records
+     *  were written, so that a commit comes after its ancestors and, for
+     *  commits saved one after another, oldest first. Ids with no record
+     *  come last. */
+    void sort(List<String> hashes) {
+        hashes.sort(Comparator.comparingInt(hash -> {
+            int position = indexOf(hash);
+            return position == NONE ? Integer.MAX_VALUE : position;
+        }));
+    }
+
+    /** Returns the ids of the commit TIP and its ancestors, reading records
+     *  only as the result is advanced. If FIRSTPARENT, these are TIP and its
+     *  chain of first parents; otherwise every ancestor comes once, in order
+     *  of decreasing generation, and of those the one recorded last first,
+     *  so that a commit always comes before its parents. */
+    Iterator<String> ancestors(String tip, boolean firstParent) {
+        int start = require(tip);
+        boolean[] queued = new boolean[_count];
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+            (x, y) -> generation(x) != generation(y)
+                ? Integer.compare(generation(y), generation(x)) : Integer.compare(y, x));
+        queue.add(start);
+        queued[start] = true;
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public String next() {
+                if (queue.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                int commit = queue.poll();
+                int[] parents = parents(commit);
+                for (int i = 0; i < (firstParent ? Math.min(1, parents.length)
+                                     : parents.length); i += 1) {
+                    if (!queued[parents[i]]) {
+                        queued[parents[i]] = true;
+                        queue.add(parents[i]);
+                    }
+                }
+                return hashAt(commit);
+            }
+        };
+    }
+
+    /** Returns the common ancestors of the records A and B that are not
+     *  ancestors of other common ancestors found along the way, walking
+     *  down from both in order of decreasing generation and stopping once
+     *  every commit still queued is below a common ancestor. */
+    private List<Integer> paintDown(int a, int b) {
+        int[] flags = new int[_count];
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+            (x, y) -> generation(x) != generation(y)
+                ? Integer.compare(generation(y), generation(x)) : Integer.compare(y, x));
+        flags[a] = FROM_FIRST;
+        flags[b] = FROM_SECOND;
+        queue.add(a);
+        queue.add(b);
+        List<Integer> result = new ArrayList<>();
+        while (hasActive(queue, flags)) {
+            int commit = queue.poll();
+            int reach = flags[commit] & (FROM_FIRST | FROM_SECOND | STALE);
+            if (reach == (FROM_FIRST | FROM_SECOND)) {
+                if ((flags[commit] & RESULT) == 0) {
+                    flags[commit] |= RESULT;
+                    result.add(commit);
+                }
+                reach |= STALE;
+            }
+            for (int parent : parents(commit)) {
+                if ((flags[parent] & reach) != reach) {
+                    flags[parent] |= reach;
+                    queue.add(parent);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns true if some commit in QUEUE is not yet known to be below a
+     *  common ancestor, according to FLAGS. */
+    private static boolean hasActive(PriorityQueue<Integer> queue, int[] flags) {
+        for (int commit : queue) {
+            if ((flags[commit] & STALE) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns true if the record ANCESTOR is an ancestor of, or is, the
+     *  record DESCENDANT, visiting only commits whose generation is above
+     *  that of ANCESTOR. */
+    private boolean isAncestor(int ancestor, int descendant) {
+        int floor = generation(ancestor);
+        boolean[] seen = new boolean[_count];
+        List<Integer> stack = new ArrayList<>();
+        stack.add(descendant);
+        while (!stack.isEmpty()) {
+            int commit = stack.remove(stack.size() - 1);
+            if (commit == ancestor) {
+                return true;
+            }
+            if (seen[commit] || generation(commit) <= floor) {
+                continue;
+            }
+            seen[commit] = true;
+            for (int parent : parents(commit)) {
+                stack.add(parent);
+            }
+        }
+        return false;
+    }
+
+    /** Returns the position of the record of HASH, or NONE if HASH is
+     *  null. Throws a GitletException if HASH is not recorded. */
+    private int require(String hash) {
+        if (hash == null) {
+            return NONE;
+        }
+        int result = indexOf(hash);
+        if (result == NONE) {
+            throw Utils.error("Commit %s is missing from the commit graph.", hash);
+        }
+        return result;
+    }
+
+    /** Returns the position of the record of HASH, or NONE if there is
+     *  none or HASH is null. The first lookup indexes every record. */
+    private int indexOf(String hash) {
+        if (hash == null) {
+            return NONE;
+        }
+        if (_positions == null) {
+            _positions = new HashMap<>(_count * 2);
+            for (int i = _first; i < _count; i += 1) {
+                _positions.put(hashAt(i), i);
+            }
+        }
+        return _positions.getOrDefault(hash, NONE);
+    }
+
+    /** Returns the id of record I. */
+    private String hashAt(int i) {
+        byte[] id = new byte[ID_SIZE];
+        _data.get(offset(i), id);
+        return ObjectStore.toHex(id, 0);
+    }
+
+    /** Returns the parents of record I. */
+    private int[] parents(int i) {
+        int first = _data.getInt(offset(i) + ID_SIZE);
+        int second = _data.getInt(offset(i) + ID_SIZE + 4);
+        if (first == NONE) {
+            return new int[0];
+        }
+        return second == NONE ? new int[] {first} : new int[] {first, second};
+    }
+
+    /** Returns the generation of record I, or 0 if I is NONE. */
+    private int generation(int i) {
+        return i == NONE ? 0 : _data.getInt(offset(i) + ID_SIZE + 8);
+    }
+
+    /** Returns the offset of record I in _data. */
+    private int offset(int i) {
+        return GRAPH_HEADER.length + (i - _first) * RECORD_SIZE;
+    }
+
+    /** Returns the position of PARENT in POSITIONS, or NONE if null. */
+    private static int parentPosition(Map<String, Integer> positions, String parent) {
+        return parent == null ? NONE : positions.get(parent);
+    }
+
+    /** Returns the record for the raw id RAW with parents FIRST and SECOND
+     *  and generation GENERATION. */
+    private static byte[] record(byte[] raw, int first, int second, int generation) {
+        Codec.Writer out = new Codec.Writer(RECORD_SIZE);
+        out.putBytes(raw);
+        out.putInt(first);
+        out.putInt(second);
+        out.putInt(generation);
+        return out.toByteArray();
+    }
+
+    /** Appends BYTES to FILE, syncing it if the fsync policy syncs all
+     *  writes. */
+    private static void append(File file, byte[] bytes) {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(bytes);
+            if (Fsync.ALL.enabled()) {
+                out.getFD().sync();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
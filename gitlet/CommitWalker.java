@@ -0,0 +1,131 @@
+package gitlet;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.StreamSupport;
+
+/** Walks a sequence of commits, loading those ahead of the one returned on
+ *  a bounded pool of I/O threads, so that reading and decoding the next
+ *  commits overlaps with whatever the caller does with the current one.
+ *  Commits are returned in order, as (id, commit) pairs, on the caller's
+ *  thread.
+ *
+ *  The ids come from the commit graph where the walk follows parents, so
+ *  the commits to read ahead are known without loading any of them. Up to
+ *  READ_AHEAD loads per I/O thread (see Workers) are in flight at once;
+ *  with io.threads set to 1, commits are loaded on the caller's thread as
+ *  they are reached. A walker that is not run to its end must be closed.
+ *
+ *  @author Jiehao Guan
+ */
+class CommitWalker implements Iterator<Map.Entry<String, Commit>>, AutoCloseable {
+
+    /** Number of commits loaded ahead per I/O thread. */
+    private static final int READ_AHEAD = 4;
+
+    /** The ids of the commits not yet submitted for loading. */
+    private final Iterator<String> _hashes;
+    /** The pool loading commits, or null if they are loaded by the caller. */
+    private final ExecutorService _pool;
+    /** Most commits loaded ahead at once. */
+    private final int _depth;
+    /** The ids and loads of the next commits, in order. */
+    private final Deque<Map.Entry<String, Future<Commit>>> _pending = new ArrayDeque<>();
+
+    /** A walker over the commits whose ids are HASHES, in that order. */
+    CommitWalker(Iterator<String> hashes) {
+        _hashes = hashes;
+        int threads = Workers.threads();
+        _pool = threads > 1 ? Workers.pool(threads) : null;
+        _depth = threads * READ_AHEAD;
+    }
+
+    /** Returns a walker over the commit TIP and its chain of first parents,
+     *  as printed by log. */
+    static CommitWalker firstParent(String tip) {
+        return new CommitWalker(CommitGraph.load().ancestors(tip, true));
+    }
+
+    /** Returns a walker over the commits of the chain of first parents from
+     *  TIP whose ids satisfy FILTER. Commits that fail it are never
+     *  loaded. */
+    static CommitWalker firstParent(String tip, Predicate<String> filter) {
+        Iterator<String> ids = CommitGraph.load().ancestors(tip, true);
+        return new CommitWalker(StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(ids, Spliterator.ORDERED), false)
+            .filter(filter).iterator());
+    }
+
+    /** Returns a walker over the commit TIP and all its ancestors, each
+     *  once, every commit coming before its parents. */
+    static CommitWalker ancestors(String tip) {
+        return new CommitWalker(CommitGraph.load().ancestors(tip, false));
+    }
+
+    @Override
+    public boolean hasNext() {
+        fill();
+        return !_pending.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<String, Commit> next() {
+        fill();
+        if (_pending.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<String, Future<Commit>> next = _pending.removeFirst();
+        Commit commit;
+        try {
+            commit = next.getValue().get();
+        } catch (ExecutionException excp) {
+            throw Workers.unwrap(excp);
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw Utils.error("Interrupted.");
+        }
+        fill();
+        return new AbstractMap.SimpleImmutableEntry<>(next.getKey(), commit);
+    }
+
+    /** Stops loading commits ahead. */
+    @Override
+    public void close() {
+        if (_pool != null) {
+            _pool.shutdownNow();
+        }
+    }
+
+    /** Submits loads until _depth are pending or no ids are left. Without
+     *  a pool, only the next commit is loaded. */
+    private void fill() {
+        int depth = _pool == null ? 1 : _depth;
+        while (_pending.size() < depth && _hashes.hasNext()) {
+            String hash = _hashes.next();
+            Future<Commit> load;
+            if (_pool == null) {
+                CompletableFuture<Commit> done = new CompletableFuture<>();
+                try {
+                    done.complete(Commit.load(hash));
+                } catch (RuntimeException excp) {
+                    done.completeExceptionally(excp);
+                }
+                load = done;
+            } else {
+                load = _pool.submit(() -> Commit.load(hash));
+            }
+            _pending.addLast(new AbstractMap.SimpleImmutableEntry<>(hash, load));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/** A compression codec for stored objects.
+ *
+ *  The id of the codec an object was written with is kept in its header,
+ *  so readers pick the right codec without being told. New codecs (for
+ *  instance a faster one backed by a library) are made available by
+ *  passing them to register with an unused id; the codec used for new
+ *  objects is chosen by the "compression" setting (see Utils.setting).
+ *
+ *  @author Jiehao Guan
+ */
+interface Compressor {
+
+    /** Stores objects as they are. */
+    Compressor NONE = new Compressor() {
+        @Override
+        public byte id() {
+            return 0;
+        }
+
+        @Override
+        public String name() {
+            return "none";
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    };
+
+    /** zlib-wrapped Deflate from the JDK. The level is taken from the
+     *  "compression.level" setting, from 0 (stored) and 1 (fastest) to 9
+     *  (smallest). */
+    Compressor DEFLATE = new Compressor() {
+        @Override
+        public byte id() {
+            return 1;
+        }
+
+        @Override
+        public String name() {
+            return "deflate";
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) {
+            int level = (int) Utils.numberSetting("compression.level", 6, 0, 9);
+            Deflater deflater = new Deflater(level);
+            return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    };
+
+    /** Size of the buffers used by codecs that stream. */
+    int BUFFER_SIZE = 64 * 1024;
+
+    /** The id recorded in the header of objects written with this codec. */
+    byte id();
+
+    /** The name by which the "compression" setting selects this codec. */
+    String name();
+
+    /** Returns a stream that compresses what is written to it onto OUT.
+     *  Closing it closes OUT. */
+    OutputStream compress(OutputStream out) throws IOException;
+
+    /** Returns a stream of the decompressed contents of IN. Closing it
+     *  closes IN. */
+    InputStream decompress(InputStream in) throws IOException;
+
+    /** Makes CODEC available for reading and, by name, for writing. */
+    static void register(Compressor codec) {
+        Registry.CODECS[codec.id()] = codec;
+    }
+
+    /** Returns the codec with the given ID. */
+    static Compressor forId(byte id) {
+        Compressor result = (id >= 0 && id < Registry.CODECS.length) ? Registry.CODECS[id] : null;
+        if (result == null) {
+            throw Utils.error("Unknown compression codec %d.", id);
+        }
+        return result;
+    }
+
+    /** Returns the codec used for newly written objects. */
+    static Compressor current() {
+        String name = Utils.setting("compression", DEFLATE.name());
+        for (Compressor codec : Registry.CODECS) {
+            if (codec != null && codec.name().equals(name)) {
+                return codec;
+            }
+        }
+        throw Utils.error("Unknown compression codec %s.", name);
+    }
+
+    /** Holds the registered codecs, indexed by id. */
+    class Registry {
+        private static final Compressor[] CODECS = new Compressor[16];
+
+        static {
+            CODECS[NONE.id()] = NONE;
+            CODECS[DEFLATE.id()] = DEFLATE;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/** A long-running gitlet process that runs commands for other gitlet
+ *  processes, so that they do not each pay for starting up. The daemon
+ *  keeps its classes loaded and compiled and its object cache warm (see
+ *  ObjectCache) from one command to the next. It rereads refs and the
+ *  index for each command, since other processes may change them.
+ *
+ *  "gitlet daemon", run in the root of a repository, serves it in the
+ *  foreground on the Unix domain socket .gitlet/daemon.sock, until
+ *  "gitlet daemon stop". While the socket is there, Main forwards each
+ *  command to the daemon rather than running it, unless the
+ *  "daemon.forward" setting is false. A client sends its gitlet settings
+ *  along (see Utils.setting). If no daemon answers, Main runs the command
+ *  itself, so a daemon that has gone away costs only a failed connection.
+ *  The daemon runs one command at a time.
+ *
+ *  Unix domain socket channels arrived in Java 16. gitlet still builds
+ *  for and runs on older releases, so the daemon reaches them through
+ *  reflection, and on a runtime without them there is no daemon: forward
+ *  always leaves commands to Main, and serve refuses to start.
+ *
+ *  A client sends its arguments and settings:
+ *      number of arguments (4 bytes) | argument (UTF) for each |
+ *      number of settings (4) | (name (UTF) | value (UTF)) for each
+ *  and the daemon answers with frames, each a tag byte and a 4-byte
+ *  number: OUT or ERR followed by that many bytes for the standard output
+ *  or error, and finally EXIT, whose number is the exit status.
+ *
+ *  @author Jiehao Guan
+ */
+class Daemon {
+
+    /** The socket, in the repository of the current directory. */
+    static final Path SOCKET = Path.of(System.getProperty("user.dir"), ".gitlet", "daemon.sock");
+
+    /** Frame tags. */
+    private static final int OUT = 'o';
+    private static final int ERR = 'e';
+    private static final int EXIT = 'x';
+    /** Size of the buffers in front of the output frames. */
+    private static final int FRAME_BUFFER = 1 << 16;
+    /** True if this runtime has Unix domain socket channels. */
+    private static final boolean SUPPORTED = Runtime.version().feature() >= 16;
+
+    /** Returns the exit status of the command ARGS as run by the daemon,
+     *  having copied its output to this process's, or -1 if there is no
+     *  daemon to run it. */
+    static int forward(String[] args) {
+        if (!SUPPORTED || !Files.exists(SOCKET)
+            || Utils.setting("daemon.forward", "true").equals("false")) {
+            return -1;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(address());
+        } catch (IOException excp) {
+            return -1;
+        }
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            Map<String, String> settings = clientSettings();
+            out.writeInt(settings.size());
+            for (Map.Entry<String, String> setting : settings.entrySet()) {
+                out.writeUTF(setting.getKey());
+                out.writeUTF(setting.getValue());
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                int tag = in.read();
+                if (tag < 0) {
+                    System.err.println("The gitlet daemon stopped before finishing.");
+                    return 1;
+                }
+                int n = in.readInt();
+                if (tag == EXIT) {
+                    System.out.flush();
+                    return n;
+                }
+                PrintStream stream = tag == OUT ? System.out : System.err;
+                stream.write(in.readNBytes(n), 0, n);
+            }
+        } catch (IOException excp) {
+            System.err.println("Lost the gitlet daemon: " + excp.getMessage());
+            return 1;
+        }
+    }
+
+    /** Serves commands on SOCKET until told to stop. */
+    static void serve() {
+        if (!SUPPORTED) {
+            throw Utils.error("The gitlet daemon needs Java 16 or later.");
+        }
+        if (forwardable()) {
+            throw Utils.error("A gitlet daemon is already running in this repository.");
+        }
+        try {
+            Files.deleteIfExists(SOCKET);
+            try (ServerSocketChannel server = openServer()) {
+                server.bind(address());
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> SOCKET.toFile().delete()));
+                boolean serving = true;
+                while (serving) {
+                    try (SocketChannel client = server.accept()) {
+                        serving = handle(client);
+                    } catch (IOException excp) {
+                        /* The client went away; serve the next one. */
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(SOCKET);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Runs the command sent by CLIENT, with its output going back to it.
+     *  Returns false if the command was to stop the daemon. */
+    private static boolean handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Channels.newInputStream(client)));
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = in.readUTF();
+        }
+        Map<String, String> settings = new HashMap<>();
+        for (int n = in.readInt(); n > 0; n -= 1) {
+            settings.put(in.readUTF(), in.readUTF());
+        }
+
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(client)));
+        boolean stop = args.length == 2 && args[0].equals("daemon") && args[1].equals("stop");
+        PrintStream stdout = new PrintStream(
+            new BufferedOutputStream(new FrameStream(out, OUT), FRAME_BUFFER));
+        PrintStream stderr = new PrintStream(
+            new BufferedOutputStream(new FrameStream(out, ERR), FRAME_BUFFER));
+        PrintStream oldOut = System.out;
+        PrintStream oldErr = System.err;
+        int status = 0;
+        System.setOut(stdout);
+        System.setErr(stderr);
+        Utils.setCommandSettings(settings);
+        Metrics.reset();
+        try {
+            if (!stop) {
+                Main.run(args);
+            }
+        } catch (RuntimeException | Error excp) {
+            /* The client gets the message, as from Main; the trace goes to
+             * the daemon's own error output. */
+            stderr.println(excp.getMessage() != null ? excp.getMessage() : excp.toString());
+            excp.printStackTrace(oldErr);
+            status = 1;
+        } finally {
+            stdout.flush();
+            stderr.flush();
+            System.setOut(oldOut);
+            System.setErr(oldErr);
+            Utils.setCommandSettings(Map.of());
+        }
+        out.write(EXIT);
+        out.writeInt(status);
+        out.flush();
+        return !stop;
+    }
+
+    /** Returns true if a daemon answers on SOCKET. */
+    private static boolean forwardable() {
+        if (!Files.exists(SOCKET)) {
+            return false;
+        }
+        try {
+            SocketChannel.open(address()).close();
+            return true;
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    /** Returns the Unix domain socket address of SOCKET. */
+    private static SocketAddress address() throws IOException {
+        return (SocketAddress) invoke("java.net.UnixDomainSocketAddress", "of",
+                                      Path.class, SOCKET);
+    }
+
+    /** Returns a new server channel for Unix domain sockets. */
+    private static ServerSocketChannel openServer() throws IOException {
+        return (ServerSocketChannel) invoke("java.nio.channels.ServerSocketChannel", "open",
+                                            ProtocolFamily.class,
+                                            StandardProtocolFamily.valueOf("UNIX"));
+    }
+
+    /** Returns the result of the static method NAME of the class KIND,
+     *  taking one argument of type PARAMETER, applied to ARG. */
+    private static Object invoke(String kind, String name, Class<?> parameter, Object arg)
+        throws IOException {
+        try {
+            return Class.forName(kind).getMethod(name, parameter).invoke(null, arg);
+        } catch (InvocationTargetException excp) {
+            if (excp.getCause() instanceof IOException) {
+                throw (IOException) excp.getCause();
+            }
+            throw new IllegalStateException(excp.getCause());
+        } catch (ReflectiveOperationException excp) {
+            throw new IllegalStateException(excp);
+        }
+    }
+
+    /** Returns the gitlet.* system properties and GITLET_* environment
+     *  variables of this process. */
+    private static Map<String, String> clientSettings() {
+        Map<String, String> result = new HashMap<>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("gitlet.")) {
+                result.put(name, System.getProperty(name));
+            }
+        }
+        for (Map.Entry<String, String> variable : System.getenv().entrySet()) {
+            if (variable.getKey().startsWith("GITLET_")) {
+                result.put(variable.getKey(), variable.getValue());
+            }
+        }
+        return result;
+    }
+
+    /** An output stream that sends what is written to it as frames with a
+     *  given tag. */
+    private static class FrameStream extends OutputStream {
+        private final DataOutputStream _out;
+        private final int _tag;
+
+        FrameStream(DataOutputStream out, int tag) {
+            _out = out;
+            _tag = tag;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            _out.write(_tag);
+            _out.writeInt(len);
+            _out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            _out.flush();
+        }
+    }
+}
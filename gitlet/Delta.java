@@ -0,0 +1,138 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** Binary deltas between versions of a blob, as stored in packfiles.
+ *
+ *  A delta is the length of the result (8 bytes) followed by a sequence of
+ *  instructions, each either
+ *      COPY (1 byte) | offset in base (4) | length (4)
+ *  or
+ *      INSERT (1 byte) | length (4) | that many literal bytes.
+ *  Matches are found by indexing the base in BLOCK-byte blocks and looking
+ *  up a rolling hash of every BLOCK-byte window of the target, so building
+ *  a delta takes time linear in the sizes of both inputs.
+ *
+ *  @author Jiehao Guan
+ */
+class Delta {
+
+    /** Instruction copying a range of the base. */
+    private static final int COPY = 0;
+    /** Instruction inserting literal bytes. */
+    private static final int INSERT = 1;
+    /** Size of the blocks of the base that matches are found from. */
+    private static final int BLOCK = 16;
+    /** Multiplier of the rolling hash. */
+    private static final int PRIME = 31;
+
+    /** Returns a delta that turns BASE into TARGET. */
+    static byte[] create(byte[] base, byte[] target) {
+        Codec.Writer out = new Codec.Writer(target.length / 4);
+        out.putLong(target.length);
+
+        /* Index the base: slot -> 1 + offset of the last block with that hash. */
+        int blocks = base.length / BLOCK;
+        int[] table = new int[Integer.highestOneBit(Math.max(blocks, 1) * 2) * 2];
+        int mask = table.length - 1;
+        for (int i = 0; i < blocks; i += 1) {
+            table[hash(base, i * BLOCK) & mask] = i * BLOCK + 1;
+        }
+
+        /* PRIME^(BLOCK - 1), to drop the leading byte of the rolling hash. */
+        int lead = 1;
+        for (int i = 1; i < BLOCK; i += 1) {
+            lead *= PRIME;
+        }
+
+        int pending = 0;
+        int t = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (t + BLOCK <= target.length) {
+            int candidate = table[h & mask] - 1;
+            if (candidate >= 0
+                && Arrays.equals(base, candidate, candidate + BLOCK, target, t, t + BLOCK)) {
+                /* Extend the match backwards into the pending literals, then forwards. */
+                int start = candidate;
+                int from = t;
+                while (start > 0 && from > pending && base[start - 1] == target[from - 1]) {
+                    start -= 1;
+                    from -= 1;
+                }
+                int end = candidate + BLOCK;
+                int to = t + BLOCK;
+                while (end < base.length && to < target.length && base[end] == target[to]) {
+                    end += 1;
+                    to += 1;
+                }
+                insert(out, target, pending, from);
+                out.putByte(COPY);
+                out.putInt(start);
+                out.putInt(end - start);
+                pending = to;
+                t = to;
+                if (t + BLOCK <= target.length) {
+                    h = hash(target, t);
+                }
+            } else {
+                if (t + BLOCK < target.length) {
+                    h = (h - lead * target[t]) * PRIME + target[t + BLOCK];
+                }
+                t += 1;
+            }
+        }
+        insert(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /** Returns the result of applying DELTA to BASE. */
+    static byte[] apply(byte[] base, byte[] delta) {
+        ByteBuffer in = ByteBuffer.wrap(delta);
+        long size = in.getLong();
+        if (size > Integer.MAX_VALUE) {
+            throw Utils.error("Delta result is too large.");
+        }
+        byte[] result = new byte[(int) size];
+        int at = 0;
+        while (in.hasRemaining()) {
+            int op = in.get();
+            if (op == COPY) {
+                int offset = in.getInt();
+                int len = in.getInt();
+                System.arraycopy(base, offset, result, at, len);
+                at += len;
+            } else if (op == INSERT) {
+                int len = in.getInt();
+                in.get(result, at, len);
+                at += len;
+            } else {
+                throw Utils.error("Corrupt delta.");
+            }
+        }
+        if (at != result.length) {
+            throw Utils.error("Corrupt delta.");
+        }
+        return result;
+    }
+
+    /** Emits an INSERT of TARGET[FROM .. TO - 1] onto OUT, if that is not
+     *  empty. */
+    private static void insert(Codec.Writer out, byte[] target, int from, int to) {
+        if (from < to) {
+            out.putByte(INSERT);
+            out.putInt(to - from);
+            out.putBytes(target, from, to - from);
+        }
+    }
+
+    /** Returns the hash of the BLOCK bytes of DATA starting at OFFSET, which
+     *  equals the rolling hash maintained by create. */
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK; i += 1) {
+            h = h * PRIME + data[i];
+        }
+        return h;
+    }
+}
@@ -0,0 +1,412 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Line-by-line comparison of files.
+ *
+ *  A file is compared as its Lines: its contents, mapped from disk rather
+ *  than read onto the heap, with the offset at which each line starts and
+ *  a hash of each line. Lines are compared by hash, and only lines whose
+ *  hashes agree are compared byte by byte, so the heap used is two ints
+ *  per line, however long the lines are.
+ *
+ *  The diff is Myers' O(ND) algorithm in its linear-space form: each step
+ *  finds the middle of a shortest edit script by searching forwards and
+ *  backwards at once, and recurses on the two halves, after trimming the
+ *  lines common to the start and end of both. A search that has not met in
+ *  MAX_COST edits settles for the furthest point it reached, so the cost of
+ *  each step is bounded, at the price of a diff that may be a little longer
+ *  than the shortest.
+ *
+ *  @author Jiehao Guan
+ */
+class Diff {
+
+    /** Number of edits after which a search for the middle of an edit
+     *  script gives up. */
+    private static final int MAX_COST = 256;
+    /** Number of leading bytes searched for a NUL byte by isBinary. */
+    private static final int BINARY_PROBE = 8000;
+    /** Number of unchanged lines shown around each change by unified. */
+    private static final int CONTEXT = 3;
+    /** Ends a last line that lacks a newline in a unified diff. */
+    private static final byte[] NO_NEWLINE =
+        "\n\\ No newline at end of file\n".getBytes(StandardCharsets.UTF_8);
+
+    /** The lines of a file. */
+    static class Lines {
+        /** The contents of the file. */
+        private final ByteBuffer _data;
+        /** Offset of the start of each line, and of the end of the data. */
+        private final int[] _starts;
+        /** Hash of each line. */
+        private final int[] _hashes;
+
+        /** The lines of DATA, from its position to its limit. The last
+         *  line need not end in a newline. */
+        Lines(ByteBuffer data) {
+            _data = data.slice();
+            int limit = _data.limit();
+            int count = 0;
+            for (int i = 0; i < limit; i += 1) {
+                if (_data.get(i) == '\n') {
+                    count += 1;
+                }
+            }
+            if (limit > 0 && _data.get(limit - 1) != '\n') {
+                count += 1;
+            }
+            _starts = new int[count + 1];
+            _hashes = new int[count];
+            int line = 0;
+            int h = 1;
+            for (int i = 0; i < limit; i += 1) {
+                byte b = _data.get(i);
+                h = 31 * h + b;
+                if (b == '\n' && line < count - 1) {
+                    _hashes[line] = h;
+                    _starts[line + 1] = i + 1;
+                    line += 1;
+                    h = 1;
+                }
+            }
+            if (count > 0) {
+                _hashes[count - 1] = h;
+            }
+            _starts[count] = limit;
+        }
+
+        /** Returns the number of lines. */
+        int size() {
+            return _hashes.length;
+        }
+
+        /** Returns true if line I of this has the same bytes as line J of
+         *  OTHER. */
+        boolean same(int i, Lines other, int j) {
+            if (_hashes[i] != other._hashes[j]) {
+                return false;
+            }
+            int start = _starts[i];
+            int len = _starts[i + 1] - start;
+            int oStart = other._starts[j];
+            if (len != other._starts[j + 1] - oStart) {
+                return false;
+            }
+            return _data.slice(start, len).mismatch(other._data.slice(oStart, len)) < 0;
+        }
+
+        /** Returns true if the lines [FROM, TO) of this are the same as the
+         *  lines [OFROM, OTO) of OTHER. */
+        boolean same(int from, int to, Lines other, int oFrom, int oTo) {
+            if (to - from != oTo - oFrom) {
+                return false;
+            }
+            for (int k = 0; k < to - from; k += 1) {
+                if (!same(from + k, other, oFrom + k)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Returns true if the last line ends in a newline, or there are no
+         *  lines. */
+        boolean hasFinalNewline() {
+            int limit = _data.limit();
+            return limit == 0 || _data.get(limit - 1) == '\n';
+        }
+
+        /** Returns true if the contents look like binary data rather than
+         *  text: if they hold a NUL byte near the start. */
+        boolean isBinary() {
+            int end = Math.min(_data.limit(), BINARY_PROBE);
+            for (int i = 0; i < end; i += 1) {
+                if (_data.get(i) == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Writes the lines [FROM, TO) to OUT. */
+        void write(OutputStream out, int from, int to) throws IOException {
+            Diff.write(out, _data, _starts[from], _starts[to]);
+        }
+
+        /** Writes the whole contents to OUT. */
+        void writeAll(OutputStream out) throws IOException {
+            Diff.write(out, _data, 0, _data.limit());
+        }
+
+        /** Writes line I to OUT after the character PREFIX, as a line of a
+         *  unified diff. */
+        void writeLine(OutputStream out, char prefix, int i) throws IOException {
+            out.write(prefix);
+            Diff.write(out, _data, _starts[i], _starts[i + 1]);
+            if (_data.get(_starts[i + 1] - 1) != '\n') {
+                out.write(NO_NEWLINE);
+            }
+        }
+    }
+
+    /** A change: lines [aStart, aEnd) of the first file were replaced by
+     *  lines [bStart, bEnd) of the second. Either range may be empty. */
+    static class Hunk {
+        final int aStart, aEnd, bStart, bEnd;
+
+        Hunk(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    /** Returns the contents of FILE, mapped read-only. */
+    static ByteBuffer map(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw Utils.error("%s is too large to compare.", file.getName());
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the changes that turn A into B, in order, with no two of them
+     *  adjacent. */
+    static List<Hunk> diff(Lines a, Lines b) {
+        List<Hunk> raw = new ArrayList<>();
+        compare(a, 0, a.size(), b, 0, b.size(), raw);
+        List<Hunk> result = new ArrayList<>(raw.size());
+        for (Hunk hunk : raw) {
+            int last = result.size() - 1;
+            if (last >= 0 && result.get(last).aEnd == hunk.aStart
+                && result.get(last).bEnd == hunk.bStart) {
+                Hunk prev = result.get(last);
+                result.set(last, new Hunk(prev.aStart, hunk.aEnd, prev.bStart, hunk.bEnd));
+            } else {
+                result.add(hunk);
+            }
+        }
+        return result;
+    }
+
+    /** Adds to OUT the changes that turn lines [ALO, AHI) of A into lines
+     *  [BLO, BHI) of B. The first half of each split is handled by a
+     *  recursive call and the second by the loop, so a long run of splits
+     *  that each settle for less than the middle does not deepen the
+     *  stack. */
+    private static void compare(Lines a, int aLo, int aHi, Lines b, int bLo, int bHi,
+                                List<Hunk> out) {
+        while (true) {
+            while (aLo < aHi && bLo < bHi && a.same(aLo, b, bLo)) {
+                aLo += 1;
+                bLo += 1;
+            }
+            while (aLo < aHi && bLo < bHi && a.same(aHi - 1, b, bHi - 1)) {
+                aHi -= 1;
+                bHi -= 1;
+            }
+            if (aLo == aHi || bLo == bHi) {
+                if (aLo < aHi || bLo < bHi) {
+                    out.add(new Hunk(aLo, aHi, bLo, bHi));
+                }
+                return;
+            }
+            int[] middle = bisect(a, aLo, aHi, b, bLo, bHi);
+            if (middle == null) {
+                out.add(new Hunk(aLo, aHi, bLo, bHi));
+                return;
+            }
+            compare(a, aLo, aLo + middle[0], b, bLo, bLo + middle[1], out);
+            aLo += middle[0];
+            bLo += middle[1];
+        }
+    }
+
+    /** Returns the point {x, y}, relative to ALO and BLO, at which the
+     *  forward and backward searches for a shortest edit script from lines
+     *  [ALO, AHI) of A to lines [BLO, BHI) of B meet. If they do not meet
+     *  within MAX_COST edits, returns instead the point the forward search
+     *  got furthest to, which splits the problem well if not always
+     *  optimally, or null if it got nowhere. The ranges must be non-empty
+     *  and must differ in their first and last lines. */
+    private static int[] bisect(Lines a, int aLo, int aHi, Lines b, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int maxD = Math.min((n + m + 1) / 2, MAX_COST);
+        int offset = maxD + 1;
+        int length = 2 * offset + 1;
+        /* forward[k] and backward[k]: the furthest x reached on diagonal k
+         * (x - y == k) going forwards, and going backwards from the end. */
+        int[] forward = new int[length];
+        int[] backward = new int[length];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean oddDelta = (delta & 1) != 0;
+        int k1Start = 0, k1End = 0, k2Start = 0, k2End = 0;
+        int bestX = 0, bestY = 0;
+        for (int d = 0; d < maxD; d += 1) {
+            for (int k1 = -d + k1Start; k1 <= d - k1End; k1 += 2) {
+                int k1Offset = offset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && forward[k1Offset - 1] < forward[k1Offset + 1])) {
+                    x1 = forward[k1Offset + 1];
+                } else {
+                    x1 = forward[k1Offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a.same(aLo + x1, b, bLo + y1)) {
+                    x1 += 1;
+                    y1 += 1;
+                }
+                forward[k1Offset] = x1;
+                if (x1 <= n && y1 <= m && x1 + y1 > bestX + bestY) {
+                    bestX = x1;
+                    bestY = y1;
+                }
+                if (x1 > n) {
+                    k1End += 2;
+                } else if (y1 > m) {
+                    k1Start += 2;
+                } else if (oddDelta) {
+                    int k2Offset = offset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < length && backward[k2Offset] != -1
+                        && x1 >= n - backward[k2Offset]) {
+                        return new int[] {x1, y1};
+                    }
+                }
+            }
+            for (int k2 = -d + k2Start; k2 <= d - k2End; k2 += 2) {
+                int k2Offset = offset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && backward[k2Offset - 1] < backward[k2Offset + 1])) {
+                    x2 = backward[k2Offset + 1];
+                } else {
+                    x2 = backward[k2Offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a.same(aHi - x2 - 1, b, bHi - y2 - 1)) {
+                    x2 += 1;
+                    y2 += 1;
+                }
+                backward[k2Offset] = x2;
+                if (x2 > n) {
+                    k2End += 2;
+                } else if (y2 > m) {
+                    k2Start += 2;
+                } else if (!oddDelta) {
+                    int k1Offset = offset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < length && forward[k1Offset] != -1) {
+                        int x1 = forward[k1Offset];
+                        int y1 = x1 - (k1Offset - offset);
+                        if (x1 >= n - x2) {
+                            return new int[] {x1, y1};
+                        }
+                    }
+                }
+            }
+        }
+        if (bestX + bestY == 0 || bestX == n && bestY == m) {
+            return null;
+        }
+        return new int[] {bestX, bestY};
+    }
+
+    /** Writes to OUT the changes from A to B, the old and new versions of
+     *  the file PATH, as a unified diff. A or B is null where the file is
+     *  absent. Binary files are reported as differing, without their
+     *  contents. */
+    static void unified(OutputStream out, String path, Lines a, Lines b) throws IOException {
+        String oldName = a == null ? "/dev/null" : "a/" + path;
+        String newName = b == null ? "/dev/null" : "b/" + path;
+        print(out, "diff a/%s b/%s\n", path, path);
+        Lines empty = new Lines(ByteBuffer.allocate(0));
+        a = a == null ? empty : a;
+        b = b == null ? empty : b;
+        if (a.isBinary() || b.isBinary()) {
+            print(out, "Binary files %s and %s differ\n", oldName, newName);
+            return;
+        }
+        print(out, "--- %s\n+++ %s\n", oldName, newName);
+        List<Hunk> hunks = diff(a, b);
+        for (int i = 0; i < hunks.size(); ) {
+            /* Show together the changes whose context would overlap. */
+            int j = i;
+            while (j + 1 < hunks.size()
+                   && hunks.get(j + 1).aStart - hunks.get(j).aEnd <= 2 * CONTEXT) {
+                j += 1;
+            }
+            Hunk first = hunks.get(i);
+            Hunk last = hunks.get(j);
+            int aFrom = Math.max(0, first.aStart - CONTEXT);
+            int aTo = Math.min(a.size(), last.aEnd + CONTEXT);
+            int bFrom = first.bStart - (first.aStart - aFrom);
+            int bTo = last.bEnd + (aTo - last.aEnd);
+            print(out, "@@ -%s +%s @@\n", range(aFrom, aTo), range(bFrom, bTo));
+            int pos = aFrom;
+            for (int k = i; k <= j; k += 1) {
+                Hunk hunk = hunks.get(k);
+                for (; pos < hunk.aStart; pos += 1) {
+                    a.writeLine(out, ' ', pos);
+                }
+                for (int line = hunk.aStart; line < hunk.aEnd; line += 1) {
+                    a.writeLine(out, '-', line);
+                }
+                for (int line = hunk.bStart; line < hunk.bEnd; line += 1) {
+                    b.writeLine(out, '+', line);
+                }
+                pos = hunk.aEnd;
+            }
+            for (; pos < aTo; pos += 1) {
+                a.writeLine(out, ' ', pos);
+            }
+            i = j + 1;
+        }
+    }
+
+    /** Returns the lines [FROM, TO) as a range of a unified diff hunk
+     *  header, numbered from 1. */
+    private static String range(int from, int to) {
+        if (to - from == 1) {
+            return Integer.toString(from + 1);
+        }
+        return (to == from ? from : from + 1) + "," + (to - from);
+    }
+
+    /** Writes String.format(FORMAT, ARGS) to OUT. */
+    private static void print(OutputStream out, String format, Object... args)
+        throws IOException {
+        out.write(String.format(format, args).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Writes the bytes [FROM, TO) of DATA to OUT. */
+    private static void write(OutputStream out, ByteBuffer data, int from, int to)
+        throws IOException {
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + from, to - from);
+            return;
+        }
+        byte[] buffer = new byte[Math.min(to - from, 1 << 16)];
+        for (int pos = from; pos < to; pos += buffer.length) {
+            int n = Math.min(buffer.length, to - pos);
+            data.get(pos, buffer, 0, n);
+            out.write(buffer, 0, n);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/** Three-way merge of the lines of a file.
+ *
+ *  The changes from the common ancestor to each side are found with Diff,
+ *  and then walked together in order of their place in the ancestor.
+ *  Changes on the two sides that overlap or touch are gathered into one
+ *  region. A region changed on only one side, or changed the same way on
+ *  both, takes that change; any other region is a conflict, written as
+ *  both sides' versions of it between conflict markers. Lines outside
+ *  every region are copied from the ancestor. The result is streamed to
+ *  its destination as it is produced.
+ *
+ *  @author Jiehao Guan
+ */
+class Diff3 {
+
+    /** Conflict markers. */
+    private static final byte[] START_MARKER = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MIDDLE_MARKER = "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] END_MARKER = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    /** Writes to OUT the merge of the changes from BASE to OURS and from
+     *  BASE to THEIRS, and returns the number of conflicting regions. */
+    static int merge(Diff.Lines base, Diff.Lines ours, Diff.Lines theirs, OutputStream out)
+        throws IOException {
+        List<Diff.Hunk> left = Diff.diff(base, ours);
+        List<Diff.Hunk> right = Diff.diff(base, theirs);
+        int conflicts = 0;
+        int done = 0;
+        int i = 0, j = 0;
+        while (i < left.size() || j < right.size()) {
+            /* Gather the region starting at the earliest remaining change. */
+            int lo = j == right.size()
+                || i < left.size() && left.get(i).aStart <= right.get(j).aStart
+                ? left.get(i).aStart : right.get(j).aStart;
+            int hi = lo;
+            int iEnd = i, jEnd = j;
+            boolean grew = true;
+            while (grew) {
+                grew = false;
+                while (iEnd < left.size() && left.get(iEnd).aStart <= hi) {
+                    hi = Math.max(hi, left.get(iEnd).aEnd);
+                    iEnd += 1;
+                    grew = true;
+                }
+                while (jEnd < right.size() && right.get(jEnd).aStart <= hi) {
+                    hi = Math.max(hi, right.get(jEnd).aEnd);
+                    jEnd += 1;
+                    grew = true;
+                }
+            }
+
+            base.write(out, done, lo);
+            int oursFrom = start(left, i, iEnd, lo);
+            int oursTo = end(left, i, iEnd, hi);
+            int theirsFrom = start(right, j, jEnd, lo);
+            int theirsTo = end(right, j, jEnd, hi);
+            if (i == iEnd) {
+                theirs.write(out, theirsFrom, theirsTo);
+            } else if (j == jEnd
+                       || ours.same(oursFrom, oursTo, theirs, theirsFrom, theirsTo)) {
+                ours.write(out, oursFrom, oursTo);
+            } else {
+                out.write(START_MARKER);
+                ours.write(out, oursFrom, oursTo);
+                out.write(MIDDLE_MARKER);
+                theirs.write(out, theirsFrom, theirsTo);
+                out.write(END_MARKER);
+                conflicts += 1;
+            }
+            done = hi;
+            i = iEnd;
+            j = jEnd;
+        }
+        base.write(out, done, base.size());
+        return conflicts;
+    }
+
+    /** Writes to OUT OURS and THEIRS whole, as a single conflict. */
+    static void conflict(Diff.Lines ours, Diff.Lines theirs, OutputStream out)
+        throws IOException {
+        out.write(START_MARKER);
+        ours.writeAll(out);
+        out.write(MIDDLE_MARKER);
+        theirs.writeAll(out);
+        out.write(END_MARKER);
+    }
+
+    /** Returns the line of one side at which the region starting at line
+     *  LO of the ancestor starts, where HUNKS[FROM, TO) are that side's
+     *  changes within the region. */
+    private static int start(List<Diff.Hunk> hunks, int from, int to, int lo) {
+        if (from == to) {
+            return lo + offset(hunks, from);
+        }
+        Diff.Hunk first = hunks.get(from);
+        return first.bStart - (first.aStart - lo);
+    }
+
+    /** Returns the line of one side at which the region ending at line HI
+     *  of the ancestor ends, where HUNKS[FROM, TO) are that side's changes
+     *  within the region. */
+    private static int end(List<Diff.Hunk> hunks, int from, int to, int hi) {
+        if (from == to) {
+            return hi + offset(hunks, from);
+        }
+        Diff.Hunk last = hunks.get(to - 1);
+        return last.bEnd + (hi - last.aEnd);
+    }
+
+    /** Returns how far lines of one side are shifted from the ancestor
+     *  after the changes HUNKS[0, K). */
+    private static int offset(List<Diff.Hunk> hunks, int k) {
+        if (k == 0) {
+            return 0;
+        }
+        Diff.Hunk prev = hunks.get(k - 1);
+        return prev.bEnd - prev.aEnd;
+    }
+}
@@ -1,43 +1,60 @@
 package gitlet;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Map;
 
-/** A debugging class whose main program may be invoked as follows:
- *      java gitlet.DumpObj FILE...
- *  where each FILE is a file produced by Utils.writeObject (or any file
- *  containing a serialized object).  This will simply read FILE,
- *  deserialize it, and call the dump method on the resulting Object.
- *  The object must implement the gitlet.Dumpable interface for this
- *  to work.  For example, you might define your class like this:
- *
- *        import java.io.Serializable;
- *        import java.util.TreeMap;
- *        class MyClass implements Serializeable, Dumpable {
- *            ...
- *            @Override
- *            public void dump() {
- *               System.out.printf("size: %d%nmapping: %s%n", _size, _mapping);
- *            }
- *            ...
- *            int _size;
- *            TreeMap<String, String> _mapping = new TreeMap<>();
- *        }
- *
- *  As illustrated, your dump method should print useful information from
- *  objects of your class.
+/** A debugging class whose main program may be invoked, in the root of a
+ *  Gitlet repository, as follows:
+ *      java gitlet.DumpObj ARG...
+ *  where each ARG is the full id of a stored object, the path of a loose
+ *  object file under .gitlet/objects, or the path of the index file
+ *  .gitlet/index. Objects are read through the object store, so their
+ *  headers are checked and their contents decompressed, whether they are
+ *  loose or packed. Commits and the staging area are decoded and their
+ *  dump methods called (see Dumpable); trees have their entries listed,
+ *  and blobs their size and contents printed.
  *  @author P. N. Hilfinger
  */
 public class DumpObj {
 
-    /** Deserialize and apply dump to the contents of each of the files
-     *  in FILES. */
-    public static void main(String... files) {
-        for (String fileName : files) {
-            Dumpable obj = Utils.readObject(new File(fileName),
-                                            Dumpable.class);
-            obj.dump();
+    /** Decodes and dumps the object or index named by each of ARGS. */
+    public static void main(String... args) {
+        for (String arg : args) {
+            File file = new File(arg);
+            if (file.isFile() && file.getName().equals("index")) {
+                Stage.decode(ByteBuffer.wrap(Utils.readContents(file))).dump();
+            } else {
+                dumpObject(file.isFile()
+                           ? file.getParentFile().getName() + file.getName() : arg);
+            }
             System.out.println("---");
         }
     }
-}
 
+    /** Prints the stored object HASH. */
+    private static void dumpObject(String hash) {
+        byte type = ObjectStore.typeOf(hash);
+        ByteBuffer contents = ObjectStore.readBuffer(hash, type);
+        switch (type) {
+            case ObjectStore.COMMIT:
+                System.out.printf("commit %s%n", hash);
+                Commit.decode(contents).dump();
+                break;
+            case ObjectStore.TREE:
+                System.out.printf("tree %s%n", hash);
+                for (Map.Entry<String, Tree.Entry> entry
+                         : Tree.decode(contents).entries().entrySet()) {
+                    System.out.printf("%s %s %s%n", entry.getValue().isDir() ? "tree" : "blob",
+                                      entry.getValue().hash, entry.getKey());
+                }
+                break;
+            default:
+                System.out.printf("blob %s, %d bytes%n", hash, contents.remaining());
+                byte[] bytes = new byte[contents.remaining()];
+                contents.get(bytes);
+                System.out.write(bytes, 0, bytes.length);
+                System.out.flush();
+        }
+    }
+}
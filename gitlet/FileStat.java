@@ -0,0 +1,86 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** The stat data of a working file (its size, modification time and inode
+ *  number where the platform has one), together with the id of the blob
+ *  its contents hashed to when that data was recorded. The index keeps one
+ *  per working file, so a file whose stat data is unchanged need not be
+ *  read to know its blob id.
+ *
+ *  @author Jiehao Guan
+ */
+class FileStat {
+
+    /** Whether the platform exposes inode numbers through the "unix"
+     *  attribute view; cleared the first time it turns out not to. */
+    private static boolean _unixView = true;
+
+    /** Size in bytes, modification time in nanoseconds since the epoch,
+     *  and inode number (0 if unknown). */
+    final long size;
+    final long mtime;
+    final long inode;
+    /** The blob id of the contents, or null if not yet known. */
+    final String blob;
+
+    FileStat(long size, long mtime, long inode, String blob) {
+        this.size = size;
+        this.mtime = mtime;
+        this.inode = inode;
+        this.blob = blob;
+    }
+
+    /** Returns the stat data of FILE, with no blob id, or null if FILE is
+     *  not a plain file. */
+    static FileStat of(File file) {
+        try {
+            if (_unixView) {
+                try {
+                    Map<String, Object> attrs = Files.readAttributes(
+                        file.toPath(), "unix:size,lastModifiedTime,ino,isRegularFile",
+                        LinkOption.NOFOLLOW_LINKS);
+                    if (!(Boolean) attrs.get("isRegularFile")) {
+                        return null;
+                    }
+                    return new FileStat((Long) attrs.get("size"),
+                                        nanos((FileTime) attrs.get("lastModifiedTime")),
+                                        (Long) attrs.get("ino"), null);
+                } catch (UnsupportedOperationException | IllegalArgumentException excp) {
+                    _unixView = false;
+                }
+            }
+            BasicFileAttributes attrs = Files.readAttributes(
+                file.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            return new FileStat(attrs.size(), nanos(attrs.lastModifiedTime()), 0, null);
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /** Returns this stat data recorded as holding the blob BLOBHASH. */
+    FileStat withBlob(String blobHash) {
+        return new FileStat(size, mtime, inode, blobHash);
+    }
+
+    /** Returns true if OTHER has the same size, modification time and
+     *  inode as this. */
+    boolean sameFile(FileStat other) {
+        return size == other.size && mtime == other.mtime && inode == other.inode;
+    }
+
+    /** Returns TIME in nanoseconds since the epoch. */
+    static long nanos(FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,68 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/** How much of what gitlet writes is flushed to disk before it is made
+ *  visible: the "fsync" setting (gitlet.fsync or GITLET_FSYNC).
+ *
+ *  Files in .gitlet are never rewritten in place. They are written to a
+ *  temporary file and renamed over the old one (see Utils.writeContents),
+ *  so a reader, or a process that was killed, sees either the old
+ *  contents or the new ones. Surviving a crash of the whole machine also
+ *  needs the data, and the rename, to have reached the disk. That costs a
+ *  sync per file, so the setting chooses which files pay it:
+ *
+ *      none     Nothing is synced.
+ *      objects  Objects and packs are synced, but refs, the index and
+ *               other metadata are not. A crash may lose the last few
+ *               updates, but never leaves a ref naming a missing object.
+ *      all      Every write is synced (the default).
+ *
+ *  @author Jiehao Guan
+ */
+enum Fsync {
+    NONE, OBJECTS, ALL;
+
+    /** Returns the policy in force. */
+    static Fsync policy() {
+        String value = Utils.setting("fsync", "all");
+        switch (value) {
+            case "none":
+                return NONE;
+            case "objects":
+                return OBJECTS;
+            case "all":
+                return ALL;
+            default:
+                throw Utils.error("Invalid fsync setting: %s.", value);
+        }
+    }
+
+    /** Returns true if writes at this level are synced under the current
+     *  policy: OBJECTS for objects and packs, and ALL for everything
+     *  else. */
+    boolean enabled() {
+        return policy().compareTo(this) >= 0;
+    }
+
+    /** Flushes the contents of FILE to disk. */
+    static void sync(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /** Flushes the entries of the directory DIR to disk, so that files
+     *  renamed into it survive a crash. Does nothing where directories
+     *  cannot be synced. */
+    static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            /* Not supported on this platform. */
+        }
+    }
+}
@@ -6,6 +6,8 @@ package gitlet;
  */
 class GitletException extends RuntimeException {
 
+    /** Pinned, like that of Commit, since exceptions are serializable. */
+    private static final long serialVersionUID = 1L;
 
     /** A GitletException with no message. */
     GitletException() {
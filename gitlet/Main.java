@@ -1,19 +1,69 @@
 package gitlet;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Set;
+
 /** Driver class for Gitlet, a subset of the Git version-control system.
  *  @author Jiehao Guan
  */
 public class Main {
 
+    /** Commands that change the repository, and so run holding its lock
+     *  (see RepositoryLock). The others only read it. */
+    private static final Set<String> WRITERS = Set.of(
+        "add", "commit", "rm", "checkout", "branch", "rm-branch", "reset", "merge", "gc");
+
     /** Usage: java gitlet.Main ARGS, where ARGS contains
-     *  <COMMAND> <OPERAND1> <OPERAND2> ... 
+     *  <COMMAND> <OPERAND1> <OPERAND2> ...
+     *  The command is run by the repository's daemon if one is running
+     *  (see Daemon), and otherwise by this process.
      */
     public static void main(String[] args) {
+        boolean startsDaemon = args.length == 1 && args[0].equals("daemon");
+        if (!startsDaemon) {
+            int status = Daemon.forward(args);
+            if (status >= 0) {
+                System.exit(status);
+            }
+        }
+        run(args);
+    }
+
+    /** Runs the command ARGS in this process, reporting errors as their
+     *  messages. */
+    static void run(String[] args) {
         if (args.length == 0) {
             System.out.println("Please enter a command.");
             return;
         }
 
+        String firstArg = args[0];
+        try {
+            if (!firstArg.equals("init")) {
+                Repository.open();
+            }
+            RepositoryLock lock = WRITERS.contains(firstArg) ? RepositoryLock.acquire() : null;
+            try {
+                dispatch(args);
+            } finally {
+                if (lock != null) {
+                    lock.close();
+                }
+            }
+            Metrics.report();
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+            Metrics.report();
+        }
+    }
+
+    /** Runs the command ARGS. */
+    private static void dispatch(String[] args) {
         String firstArg = args[0];
         switch (firstArg) {
             case "init":
@@ -21,13 +71,14 @@ public class Main {
                 Repository.init();
                 break;
             case "add":
-                validateArgs(args, 2);
-                Repository.add(args[1]);
+                if (args.length < 2) {
+                    throw Utils.error("Incorrect operands.");
+                }
+                Repository.add(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "commit":
                 if (args.length < 2 || args[1].isEmpty()) {
-                    System.out.println("Please enter a commit message.");
-                    System.exit(0);
+                    throw Utils.error("Please enter a commit message.");
                 }
                 validateArgs(args, 2);
                 Repository.commit(args[1]);
@@ -37,17 +88,19 @@ public class Main {
                 Repository.rm(args[1]);
                 break;
             case "log":
-                validateArgs(args, 1);
-                Repository.log();
-                break;
             case "global-log":
-                validateArgs(args, 1);
-                Repository.globalLog();
+                handleLog(args);
                 break;
             case "find":
                 validateArgs(args, 2);
                 Repository.find(args[1]);
                 break;
+            case "search":
+                if (args.length < 2) {
+                    throw Utils.error("Incorrect operands.");
+                }
+                Repository.search(String.join(" ", Arrays.copyOfRange(args, 1, args.length)));
+                break;
             case "status":
                 validateArgs(args, 1);
                 Repository.status();
@@ -71,17 +124,112 @@ public class Main {
                 validateArgs(args, 2);
                 Repository.merge(args[1]);
                 break;
+            case "blame":
+                validateArgs(args, 2);
+                Repository.blame(args[1]);
+                break;
+            case "diff":
+                handleDiff(args);
+                break;
+            case "gc":
+                validateArgs(args, 1);
+                Repository.gc();
+                break;
+            case "daemon":
+                if (args.length == 1) {
+                    Daemon.serve();
+                } else if (args.length == 2 && args[1].equals("stop")) {
+                    throw Utils.error("No gitlet daemon is running.");
+                } else {
+                    throw Utils.error("Incorrect operands.");
+                }
+                break;
             default:
-                System.out.println("No command with that name exists.");
-                System.exit(0);
+                throw Utils.error("No command with that name exists.");
         }
     }
 
     /** Helper to check for correct number of arguments. */
     private static void validateArgs(String[] args, int n) {
         if (args.length != n) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw Utils.error("Incorrect operands.");
+        }
+    }
+
+    /** Handles log and global-log, with their options -n COUNT, which
+     *  prints at most COUNT commits, and --since DATE, which leaves out
+     *  commits made before DATE, and log's final option -- FILE, which
+     *  prints only the commits that changed FILE. */
+    private static void handleLog(String[] args) {
+        int limit = Integer.MAX_VALUE;
+        long since = Long.MIN_VALUE;
+        String path = null;
+        int end = args.length;
+        if (args[0].equals("log") && end >= 3 && args[end - 2].equals("--")) {
+            path = args[end - 1];
+            end -= 2;
+        }
+        for (int i = 1; i < end; i += 2) {
+            if (i + 1 == end) {
+                throw Utils.error("Incorrect operands.");
+            }
+            switch (args[i]) {
+                case "-n":
+                    try {
+                        limit = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException excp) {
+                        throw Utils.error("Incorrect operands.");
+                    }
+                    if (limit < 0) {
+                        throw Utils.error("Incorrect operands.");
+                    }
+                    break;
+                case "--since":
+                    since = parseDate(args[i + 1]);
+                    break;
+                default:
+                    throw Utils.error("Incorrect operands.");
+            }
+        }
+        if (path != null) {
+            Repository.log(path, limit, since);
+        } else if (args[0].equals("log")) {
+            Repository.log(limit, since);
+        } else {
+            Repository.globalLog(limit, since);
+        }
+    }
+
+    /** Returns the time DATE denotes, in milliseconds since the epoch. DATE
+     *  is an ISO date such as 2017-11-09, taken as the start of that day, or
+     *  a date and time such as 2017-11-09T20:00:05, in local time unless it
+     *  ends with an offset such as -08:00. */
+    private static long parseDate(String date) {
+        ZoneId zone = ZoneId.systemDefault();
+        try {
+            if (date.indexOf('T') < 0) {
+                return LocalDate.parse(date).atStartOfDay(zone).toInstant().toEpochMilli();
+            }
+            try {
+                return OffsetDateTime.parse(date).toInstant().toEpochMilli();
+            } catch (DateTimeParseException excp) {
+                return LocalDateTime.parse(date).atZone(zone).toInstant().toEpochMilli();
+            }
+        } catch (DateTimeParseException excp) {
+            throw Utils.error("Invalid date: %s", date);
+        }
+    }
+
+    /** Handles the three different types of diff. */
+    private static void handleDiff(String[] args) {
+        if (args.length == 1) {
+            Repository.diff();
+        } else if (args.length == 2 && args[1].equals("--cached")) {
+            Repository.diffCached();
+        } else if (args.length == 3) {
+            Repository.diffCommits(args[1], args[2]);
+        } else {
+            throw Utils.error("Incorrect operands.");
         }
     }
 
@@ -94,8 +242,7 @@ public class Main {
         } else if (args.length == 2) {
             Repository.checkoutBranch(args[1]);
         } else {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw Utils.error("Incorrect operands.");
         }
     }
 }
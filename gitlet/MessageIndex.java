@@ -0,0 +1,254 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static gitlet.Utils.join;
+
+/** The index of commit messages, under .gitlet/message-index.
+ *
+ *  Lists of commits are kept in files named, in the fan-out layout of the
+ *  object store, by the SHA-1 hash of a key, each a sequence of raw
+ *  20-byte commit ids in the order the commits were saved:
+ *      messages/ab/cdef...   commits whose message is the one hashed;
+ *      tokens/ab/cdef...     commits whose message contains the token
+ *                            hashed, a lower-case run of letters and
+ *                            digits;
+ *  and the file vocabulary lists every token seen, one per line. A commit
+ *  is indexed by appending its id to the files of its message and tokens
+ *  as it is saved, so find reads a single file however long the history
+ *  is, and search reads the vocabulary, which grows far more slowly than
+ *  the history, and the lists of the tokens that match.
+ *
+ *  If the directory is missing, as in a repository written by an earlier
+ *  version, it is rebuilt from the commits in the object store.
+ *
+ *  @author Jiehao Guan
+ */
+class MessageIndex {
+
+    /** The directory holding the index. */
+    static final File INDEX_DIR = join(Repository.GITLET_DIR, "message-index");
+
+    /** Size of a raw commit id, the record of every list. */
+    private static final int ID_SIZE = Utils.UID_LENGTH / 2;
+
+    /** Records the commit HASH, whose message is MESSAGE, unless it is
+     *  the last commit recorded with that message, as when saving it was
+     *  cut short after its message list was written. */
+    static void add(String hash, String message) {
+        if (!INDEX_DIR.isDirectory()) {
+            rebuild();
+            return;
+        }
+        File messageFile = listFile(INDEX_DIR, "messages", message);
+        if (hash.equals(lastId(messageFile))) {
+            return;
+        }
+        Set<String> tokens = tokens(message);
+        StringBuilder newTokens = new StringBuilder();
+        for (String token : tokens) {
+            if (!listFile(INDEX_DIR, "tokens", token).exists()) {
+                newTokens.append(token).append('\n');
+            }
+        }
+        append(join(INDEX_DIR, "vocabulary"),
+               newTokens.toString().getBytes(StandardCharsets.UTF_8), 1);
+        byte[] raw = ObjectStore.toRaw(hash);
+        for (String token : tokens) {
+            append(listFile(INDEX_DIR, "tokens", token), raw, ID_SIZE);
+        }
+        /* Written last, so that a commit cut short is indexed again. */
+        append(messageFile, raw, ID_SIZE);
+    }
+
+    /** Returns the ids of the commits whose message is MESSAGE, oldest
+     *  first. */
+    static List<String> find(String message) {
+        return new ArrayList<>(read(listFile(INDEX_DIR, "messages", message)));
+    }
+
+    /** Returns the ids of the commits whose messages, for every word of
+     *  QUERY, contain a token containing that word, ignoring case; oldest
+     *  first. Returns nothing if QUERY has no words. */
+    static List<String> search(String query) {
+        List<String> words = new ArrayList<>(tokens(query));
+        if (words.isEmpty()) {
+            return new ArrayList<>();
+        }
+        /* The longest word matches the fewest tokens, so start from it. */
+        words.sort(Comparator.comparing(String::length).reversed());
+        Set<String> vocabulary = vocabulary();
+        Set<String> result = null;
+        for (String word : words) {
+            Set<String> matches = new LinkedHashSet<>();
+            for (String token : vocabulary) {
+                if (token.contains(word)) {
+                    matches.addAll(read(listFile(INDEX_DIR, "tokens", token)));
+                }
+            }
+            if (result == null) {
+                result = matches;
+            } else {
+                result.retainAll(matches);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        /* Each list is in commit order, but the lists of different tokens
+         * interleave, so put the result back in commit order. */
+        List<String> hashes = new ArrayList<>(result);
+        CommitGraph.load().sort(hashes);
+        return hashes;
+    }
+
+    /** Rewrites the index from the commits in the object store, taken in
+     *  the order of the commit graph so that every list is oldest first,
+     *  building it in a temporary directory that then replaces the old
+     *  one. */
+    static void rebuild() {
+        Map<String, ByteArrayOutputStream> messages = new LinkedHashMap<>();
+        Map<String, ByteArrayOutputStream> tokens = new LinkedHashMap<>();
+        try (CommitWalker walker = new CommitWalker(CommitGraph.load().hashes().iterator())) {
+            while (walker.hasNext()) {
+                Map.Entry<String, Commit> entry = walker.next();
+                String message = entry.getValue().getMessage();
+                byte[] raw = ObjectStore.toRaw(entry.getKey());
+                messages.computeIfAbsent(message, m -> new ByteArrayOutputStream())
+                    .writeBytes(raw);
+                for (String token : tokens(message)) {
+                    tokens.computeIfAbsent(token, t -> new ByteArrayOutputStream())
+                        .writeBytes(raw);
+                }
+            }
+        }
+
+        File temp = join(Repository.TMP_DIR, "message-index");
+        Utils.deleteDirectory(temp);
+        temp.mkdir();
+        for (Map.Entry<String, ByteArrayOutputStream> entry : messages.entrySet()) {
+            write(listFile(temp, "messages", entry.getKey()), entry.getValue().toByteArray());
+        }
+        StringBuilder vocabulary = new StringBuilder();
+        for (Map.Entry<String, ByteArrayOutputStream> entry : tokens.entrySet()) {
+            write(listFile(temp, "tokens", entry.getKey()), entry.getValue().toByteArray());
+            vocabulary.append(entry.getKey()).append('\n');
+        }
+        Utils.writeContents(join(temp, "vocabulary"), vocabulary.toString());
+        Utils.deleteDirectory(INDEX_DIR);
+        try {
+            Files.move(temp.toPath(), INDEX_DIR.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the distinct tokens of TEXT, in the order they appear. */
+    static Set<String> tokens(String text) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String token : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) {
+                result.add(token);
+            }
+        }
+        return result;
+    }
+
+    /** Returns every token in the index. */
+    private static Set<String> vocabulary() {
+        File file = join(INDEX_DIR, "vocabulary");
+        Set<String> result = new LinkedHashSet<>();
+        if (!file.exists()) {
+            return result;
+        }
+        for (String token : Utils.readContentsAsString(file).split("\n")) {
+            if (!token.isEmpty()) {
+                result.add(token);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the file under DIR/KIND of the list for KEY. */
+    private static File listFile(File dir, String kind, String key) {
+        String hash = Utils.sha1(kind, key);
+        return join(dir, kind, hash.substring(0, 2), hash.substring(2));
+    }
+
+    /** Returns the ids listed in FILE, which may be missing. A partial
+     *  record left by an interrupted append is ignored. */
+    private static Set<String> read(File file) {
+        Set<String> result = new LinkedHashSet<>();
+        if (!file.exists()) {
+            return result;
+        }
+        byte[] ids = Utils.readContents(file);
+        for (int i = 0; i + ID_SIZE <= ids.length; i += ID_SIZE) {
+            result.add(ObjectStore.toHex(ids, i));
+        }
+        return result;
+    }
+
+    /** Returns the id of the last whole record of FILE, or null if it is
+     *  missing or has none. */
+    private static String lastId(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long count = in.length() / ID_SIZE;
+            if (count == 0) {
+                return null;
+            }
+            byte[] raw = new byte[ID_SIZE];
+            in.seek((count - 1) * ID_SIZE);
+            in.readFully(raw);
+            return ObjectStore.toHex(raw, 0);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Writes BYTES as the contents of FILE, creating its directory. */
+    private static void write(File file, byte[] bytes) {
+        file.getParentFile().mkdirs();
+        Utils.writeContents(file, bytes);
+    }
+
+    /** Appends BYTES to FILE, a sequence of RECORD-byte records, creating it
+     *  and its directory, and syncing it if the fsync policy syncs all
+     *  writes. A partial record left at the end of FILE is dropped first. */
+    private static void append(File file, byte[] bytes, int record) {
+        if (bytes.length == 0) {
+            return;
+        }
+        file.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            long size = out.getChannel().size();
+            if (size % record != 0) {
+                out.getChannel().truncate(size - size % record);
+            }
+            out.write(bytes);
+            if (Fsync.ALL.enabled()) {
+                out.getFD().sync();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package gitlet;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Counters describing the work a command did, such as how many working
+ *  files it wrote and how many it found already up to date. They are
+ *  printed to the standard error when the command finishes if the "stats"
+ *  setting (gitlet.stats or GITLET_STATS) is "true", one "name: value" line
+ *  per counter, so the standard output is unchanged.
+ *
+ *  @author Jiehao Guan
+ */
+class Metrics {
+
+    /** Counter name -> value, in name order. */
+    private static final TreeMap<String, Long> COUNTERS = new TreeMap<>();
+
+    /** Adds N to the counter NAME. */
+    static synchronized void add(String name, long n) {
+        COUNTERS.merge(name, n, Long::sum);
+    }
+
+    /** Adds one to the counter NAME. */
+    static void increment(String name) {
+        add(name, 1);
+    }
+
+    /** Returns the value of the counter NAME. */
+    static synchronized long get(String name) {
+        return COUNTERS.getOrDefault(name, 0L);
+    }
+
+    /** Sets every counter back to zero, as between the commands run by a
+     *  daemon. */
+    static synchronized void reset() {
+        COUNTERS.clear();
+    }
+
+    /** Returns true if counters are to be reported. */
+    static boolean enabled() {
+        return Boolean.parseBoolean(Utils.setting("stats", "false"));
+    }
+
+    /** Prints the counters to the standard error if reporting is enabled. */
+    static synchronized void report() {
+        if (!enabled()) {
+            return;
+        }
+        for (Map.Entry<String, Long> entry : COUNTERS.entrySet()) {
+            System.err.println(entry.getKey() + ": " + entry.getValue());
+        }
+    }
+}
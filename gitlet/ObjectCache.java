@@ -0,0 +1,98 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** An in-process cache of objects read from the object store, keyed by
+ *  object id. Objects are immutable and named by the hash of their
+ *  contents, so an entry never goes stale and the cache needs no
+ *  invalidation; it only has to stay within its bounds. These are the
+ *  "cache.entries" and "cache.bytes" settings, and the least recently used
+ *  entries are evicted to meet them. A value is cached with the size of
+ *  the encoded object it came from, which stands in for its footprint on
+ *  the heap.
+ *
+ *  Lookups are counted in the cache.hits and cache.misses metrics, and
+ *  evictions in cache.evictions (see Metrics).
+ *
+ *  @author Jiehao Guan
+ */
+class ObjectCache {
+
+    /** Default bounds on the number of entries and their total size. */
+    private static final int DEFAULT_ENTRIES = 4096;
+    private static final long DEFAULT_BYTES = 64L << 20;
+
+    /** The cache of this process, made when first used. */
+    private static ObjectCache instance;
+
+    /** A cached value and the size it is charged for. */
+    private static class Entry {
+        final Object value;
+        final long size;
+
+        Entry(Object value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /** Object id -> entry, from least to most recently used. */
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+    /** Bounds on the number of entries and the sum of their sizes. */
+    private final int _maxEntries;
+    private final long _maxBytes;
+    /** Sum of the sizes of the entries. */
+    private long _bytes;
+
+    /** A cache of at most MAXENTRIES entries totalling at most MAXBYTES. */
+    ObjectCache(int maxEntries, long maxBytes) {
+        _maxEntries = maxEntries;
+        _maxBytes = maxBytes;
+    }
+
+    /** Returns the cache of this process, bounded by the settings when it
+     *  is first used. Throws a GitletException if either setting is not a
+     *  whole number of at least 0. */
+    static synchronized ObjectCache instance() {
+        if (instance == null) {
+            instance = new ObjectCache(
+                (int) Utils.numberSetting("cache.entries", DEFAULT_ENTRIES, 0, Integer.MAX_VALUE),
+                Utils.numberSetting("cache.bytes", DEFAULT_BYTES, 0, Long.MAX_VALUE));
+        }
+        return instance;
+    }
+
+    /** Returns the value cached for the object HASH if it is an instance
+     *  of KIND, and otherwise null. */
+    synchronized <T> T get(String hash, Class<T> kind) {
+        Entry entry = _entries.get(hash);
+        if (entry == null || !kind.isInstance(entry.value)) {
+            Metrics.increment("cache.misses");
+            return null;
+        }
+        Metrics.increment("cache.hits");
+        return kind.cast(entry.value);
+    }
+
+    /** Caches VALUE, read from the object HASH whose contents are SIZE
+     *  bytes long, evicting older entries as needed. Values larger than the
+     *  whole cache are not kept. */
+    synchronized void put(String hash, Object value, long size) {
+        if (size > _maxBytes || _maxEntries <= 0) {
+            return;
+        }
+        Entry old = _entries.put(hash, new Entry(value, size));
+        if (old != null) {
+            _bytes -= old.size;
+        }
+        _bytes += size;
+        Iterator<Map.Entry<String, Entry>> eldest = _entries.entrySet().iterator();
+        while (_entries.size() > _maxEntries || _bytes > _maxBytes) {
+            _bytes -= eldest.next().getValue().size;
+            eldest.remove();
+            Metrics.increment("cache.evictions");
+        }
+    }
+}
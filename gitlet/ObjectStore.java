@@ -0,0 +1,852 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static gitlet.Utils.join;
+
+/** The object database under .gitlet/objects.
+ *
+ *  Objects live in a fan-out layout keyed by the first two hex digits of
+ *  their SHA-1 id (objects/ab/cdef...), so no single directory grows with
+ *  the size of the repository. The ids of all commits are additionally
+ *  kept in .gitlet/commit-index as sorted 20-byte records, which lets
+ *  abbreviated commit ids be resolved with a binary search, and lets
+ *  commands that only care about commits skip blobs entirely. A new
+ *  commit is appended, unsorted, to .gitlet/commit-log, so that saving it
+ *  does not rewrite the index; the log is merged into the index by gc, by
+ *  migrate, and by addCommit once it holds MAX_LOG_RECORDS. Readers read
+ *  the log before the index, and a merge writes the index before deleting
+ *  the log, so no reader misses a commit.
+ *
+ *  Objects are either loose, one file each, or gathered by repack into
+ *  packfiles (see Pack); all readers below look in both places.
+ *
+ *  Every stored object starts with a HEADER_SIZE-byte header: the two
+ *  magic bytes 'g' 'l', a type byte (COMMIT, BLOB or TREE) and the id of
+ *  the Compressor its contents are stored with. The type of an object can
+ *  thus be checked without reading, let alone decompressing, its contents.
+ *  Object ids are always hashes of the uncompressed contents.
+ *
+ *  @author Jiehao Guan
+ */
+class ObjectStore {
+
+    /** Sorted, fixed-width list of the raw ids of every commit. */
+    static final File COMMIT_INDEX = join(Repository.GITLET_DIR, "commit-index");
+    /** Unsorted list of the raw ids of commits saved since the last merge
+     *  into COMMIT_INDEX, in the order they were saved. */
+    static final File COMMIT_LOG = join(Repository.GITLET_DIR, "commit-log");
+    /** Records the on-disk format version of the repository. */
+    static final File FORMAT_FILE = join(Repository.GITLET_DIR, "format");
+
+    /** Current on-disk format: 0 is the original flat layout, 1 added
+     *  the fan-out layout, 2 the object headers, 3 the binary encoding
+     *  of commits and the index, 4 compression, 5 packfiles and 6 tree
+     *  objects. Objects written by format 2 stay readable as they are, so
+     *  later versions need no rewriting. */
+    static final int FORMAT_VERSION = 6;
+
+    /** Type byte of a commit object. */
+    static final byte COMMIT = 'c';
+    /** Type byte of a blob (file contents) object. */
+    static final byte BLOB = 'b';
+    /** Type byte of a tree (directory listing) object. */
+    static final byte TREE = 't';
+
+    /** Length of the header preceding the contents of every object. */
+    static final int HEADER_SIZE = 4;
+    /** First two bytes of every object header. */
+    private static final byte MAGIC_0 = 'g';
+    private static final byte MAGIC_1 = 'l';
+
+    /** Objects stored in more bytes than this are left loose by repack. */
+    private static final long MAX_PACKED_SIZE = Pack.MAX_PACK_SIZE / 4;
+    /** Blobs larger than this are never stored as deltas. */
+    private static final int MAX_DELTA_SIZE = 8 << 20;
+    /** Number of preceding blobs that repack tries as delta bases. */
+    private static final int DELTA_WINDOW = 10;
+    /** Longest chain of deltas repack creates. */
+    private static final int MAX_DELTA_DEPTH = 50;
+
+    /** Size of the buffer through which blobs are hashed. */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /** Size in bytes of one record of COMMIT_INDEX and COMMIT_LOG. */
+    private static final int RECORD_SIZE = Utils.UID_LENGTH / 2;
+    /** Records COMMIT_LOG may hold before addCommit merges it into
+     *  COMMIT_INDEX, which bounds the linear scan of it by resolveCommit. */
+    private static final int MAX_LOG_RECORDS = 1024;
+    /** Digits used when printing raw ids. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Returns the file holding the object with the given full HASH. */
+    static File objectFile(String hash) {
+        return join(Repository.OBJECTS_DIR, hash.substring(0, 2), hash.substring(2));
+    }
+
+    /** Returns true if an object with the given full HASH is stored,
+     *  either loose or in a pack. */
+    static boolean contains(String hash) {
+        return objectFile(hash).isFile() || Pack.containing(hash) != null;
+    }
+
+    /** Stores CONTENTS as the object HASH of the given TYPE, compressed with
+     *  the current codec unless that would not make it any smaller. */
+    static void write(String hash, byte type, byte[] contents) {
+        File file = objectFile(hash);
+        file.getParentFile().mkdir();
+        Compressor codec = Compressor.current();
+        byte[] stored = contents;
+        if (codec != Compressor.NONE) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(contents.length / 2 + 16);
+            try (OutputStream out = codec.compress(compressed)) {
+                out.write(contents);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            if (compressed.size() < contents.length) {
+                stored = compressed.toByteArray();
+            } else {
+                codec = Compressor.NONE;
+            }
+        }
+        Utils.writeContents(file, Fsync.OBJECTS, header(type, codec), stored);
+    }
+
+    /** Returns the contents of the object HASH, which must be of the
+     *  given TYPE, if they are at most LIMIT bytes long, and otherwise null.
+     *  Wherever the object is stored, at most LIMIT + 1 bytes of it are
+     *  decompressed to find out. The result is shared through the object
+     *  cache, so callers must not modify it. */
+    static byte[] read(String hash, byte type, int limit) {
+        byte[] result = ObjectCache.instance().get(hash, byte[].class);
+        if (result != null && result.length <= limit) {
+            return result;
+        }
+        try (InputStream in = open(hash, type)) {
+            result = in.readNBytes(limit + 1);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (result.length > limit) {
+            return null;
+        }
+        ObjectCache.instance().put(hash, result, result.length);
+        return result;
+    }
+
+    /** Returns a buffer over the contents of the object HASH, which must be
+     *  of the given TYPE. Uncompressed contents are not copied. */
+    static ByteBuffer readBuffer(String hash, byte type) {
+        File file = objectFile(hash);
+        if (!file.isFile()) {
+            Pack pack = packContaining(hash, type);
+            return ByteBuffer.wrap(pack.read(hash));
+        }
+        byte[] stored = Utils.readContents(file);
+        checkHeader(hash, stored, type);
+        Compressor codec = Compressor.forId(stored[3]);
+        if (codec == Compressor.NONE) {
+            return ByteBuffer.wrap(stored, HEADER_SIZE, stored.length - HEADER_SIZE).slice();
+        }
+        InputStream raw = new ByteArrayInputStream(stored, HEADER_SIZE, stored.length - HEADER_SIZE);
+        try (InputStream in = codec.decompress(raw)) {
+            return ByteBuffer.wrap(in.readAllBytes());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns a stream of the contents of the object HASH, which must be
+     *  of the given TYPE. */
+    static InputStream open(String hash, byte type) {
+        File file = objectFile(hash);
+        try {
+            if (!file.isFile()) {
+                return packContaining(hash, type).open(hash);
+            }
+            InputStream in = new FileInputStream(file);
+            byte[] header = in.readNBytes(HEADER_SIZE);
+            checkHeader(hash, header, type);
+            return Compressor.forId(header[3]).decompress(in);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the pack holding HASH, which must be an object of the given
+     *  TYPE. */
+    private static Pack packContaining(String hash, byte type) {
+        Pack pack = Pack.containing(hash);
+        if (pack == null) {
+            throw Utils.error("Object %s does not exist.", hash);
+        }
+        if (pack.typeOf(hash) != type) {
+            throw Utils.error("Object %s is not a %s.", hash, typeName(type));
+        }
+        return pack;
+    }
+
+    /* BLOBS */
+
+    /** Returns the id that the contents of FILE have as a blob. The file is
+     *  hashed through a fixed-size buffer, so memory use does not depend on
+     *  its size. The id is that of the uncompressed contents, whatever codec
+     *  the blob is stored with. */
+    static String hashBlob(File file) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                md.update(buffer, 0, n);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return toHex(md.digest(), 0);
+    }
+
+    /** Stores the contents of FILE as the blob HASH, as computed by hashBlob,
+     *  unless that blob is already stored. The contents are streamed through
+     *  the current codec; if that does not make them smaller they are stored
+     *  as they are, copied from file to file by the channel without passing
+     *  through the heap. */
+    static void writeBlob(String hash, File file) {
+        if (contains(hash)) {
+            return;
+        }
+        File target = objectFile(hash);
+        target.getParentFile().mkdir();
+        try {
+            File temp = Utils.tempFile();
+            Compressor codec = Compressor.current();
+            if (codec != Compressor.NONE) {
+                try (OutputStream raw = new FileOutputStream(temp)) {
+                    raw.write(header(BLOB, codec));
+                    try (OutputStream out = codec.compress(raw)) {
+                        Files.copy(file.toPath(), out);
+                    }
+                }
+            }
+            if (codec == Compressor.NONE || temp.length() >= file.length() + HEADER_SIZE) {
+                try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    out.write(ByteBuffer.wrap(header(BLOB, Compressor.NONE)));
+                    transfer(in, 0, in.size(), out);
+                }
+            }
+            boolean sync = Fsync.OBJECTS.enabled();
+            if (sync) {
+                Fsync.sync(temp);
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            if (sync) {
+                Fsync.syncDirectory(target.getParentFile());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Writes the contents of the blob HASH to FILE, creating or overwriting
+     *  it as needed, without loading them onto the heap. */
+    static void copyBlob(String hash, File file) {
+        File source = objectFile(hash);
+        if (!source.isFile()) {
+            try (InputStream in = open(hash, BLOB);
+                 OutputStream out = new FileOutputStream(file)) {
+                in.transferTo(out);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            return;
+        }
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                                                StandardOpenOption.CREATE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (in.read(header) < 0) {
+                    break;
+                }
+            }
+            checkHeader(hash, header.array(), BLOB);
+            Compressor codec = Compressor.forId(header.get(3));
+            if (codec == Compressor.NONE) {
+                transfer(in, HEADER_SIZE, in.size() - HEADER_SIZE, out);
+            } else {
+                try (InputStream contents = codec.decompress(Channels.newInputStream(in))) {
+                    contents.transferTo(Channels.newOutputStream(out));
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Copies COUNT bytes of IN, starting at POSITION, to the current
+     *  position of OUT. */
+    private static void transfer(FileChannel in, long position, long count, FileChannel out)
+        throws IOException {
+        long done = 0;
+        while (done < count) {
+            long n = in.transferTo(position + done, count - done, out);
+            if (n <= 0) {
+                throw new IOException("unexpected end of file");
+            }
+            done += n;
+        }
+    }
+
+    /** Returns the type byte of the object HASH, reading only its header. */
+    static byte typeOf(String hash) {
+        if (!objectFile(hash).isFile()) {
+            Pack pack = Pack.containing(hash);
+            if (pack == null) {
+                throw Utils.error("Object %s does not exist.", hash);
+            }
+            return pack.typeOf(hash);
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        try (InputStream in = new FileInputStream(objectFile(hash))) {
+            if (in.readNBytes(header, 0, HEADER_SIZE) != HEADER_SIZE) {
+                throw Utils.error("Object %s is corrupt.", hash);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        checkHeader(hash, header, header[2]);
+        return header[2];
+    }
+
+    /** Returns the ids of all stored objects, loose or packed, in
+     *  lexicographic order. */
+    static List<String> allObjects() {
+        TreeSet<String> result = new TreeSet<>(looseObjects());
+        for (Pack pack : Pack.all()) {
+            result.addAll(pack.ids());
+        }
+        return new ArrayList<>(result);
+    }
+
+    /** Returns the ids of all loose objects, in lexicographic order. */
+    private static List<String> looseObjects() {
+        List<String> result = new ArrayList<>();
+        String[] dirs = Repository.OBJECTS_DIR.list();
+        if (dirs == null) {
+            return result;
+        }
+        Arrays.sort(dirs);
+        for (String dir : dirs) {
+            List<String> names = Utils.plainFilenamesIn(join(Repository.OBJECTS_DIR, dir));
+            if (dir.length() != 2 || names == null) {
+                continue;
+            }
+            for (String name : names) {
+                if (name.length() == Utils.UID_LENGTH - 2) {
+                    result.add(dir + name);
+                }
+            }
+        }
+        return result;
+    }
+
+    /* PACKING */
+
+    /** Moves all objects into a new pack, then deletes their loose copies
+     *  and the packs they came from. Blobs are ordered so that versions of
+     *  the same file, newest first, are adjacent; each blob is stored as a
+     *  Delta against one of the DELTA_WINDOW blobs before it when that
+     *  takes less than half its size and applying it to that blob gives
+     *  back the original. Objects stored in more than MAX_PACKED_SIZE
+     *  bytes are left loose. */
+    static void repack() {
+        List<Pack> oldPacks = Pack.all();
+        List<String> ids = allObjects();
+
+        /* Find the path and latest commit time of every committed blob.
+         * Taking the commits newest first, each tree is read once, from the
+         * newest commit that has it, which gives its blobs their latest
+         * time. */
+        List<Commit> commits = new ArrayList<>();
+        try (CommitWalker walker = new CommitWalker(allCommits().iterator())) {
+            while (walker.hasNext()) {
+                commits.add(walker.next().getValue());
+            }
+        }
+        commits.sort(Comparator.comparing(Commit::getTimestamp).reversed());
+        Map<String, String> paths = new HashMap<>();
+        Map<String, Long> times = new HashMap<>();
+        Set<String> trees = new HashSet<>();
+        for (Commit commit : commits) {
+            long time = commit.getTimestamp().getTime();
+            commit.walk(trees, (path, blob) -> {
+                paths.putIfAbsent(blob, path);
+                times.putIfAbsent(blob, time);
+            });
+        }
+        List<String> blobs = new ArrayList<>();
+        List<String> others = new ArrayList<>();
+        for (String id : ids) {
+            if (objectFile(id).length() > MAX_PACKED_SIZE) {
+                continue;
+            }
+            if (typeOf(id) == BLOB) {
+                blobs.add(id);
+            } else {
+                others.add(id);
+            }
+        }
+        blobs.sort(Comparator.comparing((String id) -> paths.getOrDefault(id, ""))
+                   .thenComparing(id -> -times.getOrDefault(id, 0L))
+                   .thenComparing(id -> id));
+
+        Set<File> newPacks = new HashSet<>();
+        try {
+            Pack.Writer writer = new Pack.Writer();
+            for (String id : others) {
+                byte type = typeOf(id);
+                try (InputStream in = open(id, type)) {
+                    writer.add(id, type, in);
+                }
+            }
+            Deque<DeltaBase> window = new ArrayDeque<>();
+            for (String id : blobs) {
+                if (writer.size() > Pack.MAX_PACK_SIZE) {
+                    newPacks.add(writer.finish());
+                    writer = new Pack.Writer();
+                    window.clear();
+                }
+                try (InputStream in = open(id, BLOB)) {
+                    byte[] contents = in.readNBytes(MAX_DELTA_SIZE + 1);
+                    if (contents.length > MAX_DELTA_SIZE) {
+                        writer.add(id, BLOB, new SequenceInputStream(
+                            new ByteArrayInputStream(contents), in));
+                        continue;
+                    }
+                    DeltaBase best = null;
+                    byte[] bestDelta = null;
+                    for (DeltaBase base : window) {
+                        if (base.depth < MAX_DELTA_DEPTH) {
+                            byte[] delta = Delta.create(base.contents, contents);
+                            if (delta.length < contents.length / 2
+                                && (bestDelta == null || delta.length < bestDelta.length)) {
+                                best = base;
+                                bestDelta = delta;
+                            }
+                        }
+                    }
+                    if (best != null
+                        && !Arrays.equals(Delta.apply(best.contents, bestDelta), contents)) {
+                        /* Never store a delta that does not give the blob
+                         * back; its loose copy is about to be deleted. */
+                        best = null;
+                    }
+                    DeltaBase added;
+                    if (best == null) {
+                        added = new DeltaBase(contents, writer.add(id, BLOB,
+                            new ByteArrayInputStream(contents)), 0);
+                    } else {
+                        added = new DeltaBase(contents, writer.addDelta(id, best.offset, bestDelta),
+                                              best.depth + 1);
+                    }
+                    window.addFirst(added);
+                    if (window.size() > DELTA_WINDOW) {
+                        window.removeLast();
+                    }
+                }
+            }
+            newPacks.add(writer.finish());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        for (Pack pack : oldPacks) {
+            if (!newPacks.contains(pack.file())) {
+                String name = pack.file().getName();
+                join(Pack.PACK_DIR, name.substring(0, name.length() - ".pack".length()) + ".idx")
+                    .delete();
+                pack.file().delete();
+            }
+        }
+        for (String id : others) {
+            objectFile(id).delete();
+        }
+        for (String id : blobs) {
+            objectFile(id).delete();
+        }
+        /* Remove the fan-out directories left empty; others refuse. */
+        for (File dir : Repository.OBJECTS_DIR.listFiles()) {
+            if (dir.getName().length() == 2) {
+                dir.delete();
+            }
+        }
+        Pack.reset();
+    }
+
+    /** A blob just written to a pack that later blobs may be deltas of. */
+    private static class DeltaBase {
+        /** The blob's contents, the offset of its entry and the number of
+         *  deltas that must be applied to read it. */
+        private final byte[] contents;
+        private final long offset;
+        private final int depth;
+
+        DeltaBase(byte[] contents, long offset, int depth) {
+            this.contents = contents;
+            this.offset = offset;
+            this.depth = depth;
+        }
+    }
+
+    /* COMMIT INDEX */
+
+    /** Records HASH in the commit index by appending it to COMMIT_LOG,
+     *  which takes the same time however many commits there are. The
+     *  caller must hold the repository lock. */
+    static void addCommit(String hash) {
+        if (!COMMIT_INDEX.exists()
+            || COMMIT_LOG.length() / RECORD_SIZE >= MAX_LOG_RECORDS) {
+            mergeCommitLog();
+        }
+        try (FileOutputStream out = new FileOutputStream(COMMIT_LOG, true)) {
+            long size = out.getChannel().size();
+            if (size % RECORD_SIZE != 0) {
+                /* Cut short by a crash during an append. */
+                out.getChannel().truncate(size - size % RECORD_SIZE);
+            }
+            out.write(toRaw(hash));
+            if (Fsync.ALL.enabled()) {
+                out.getFD().sync();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Merges COMMIT_LOG into COMMIT_INDEX, creating the index if it is
+     *  missing. The caller must hold the repository lock. */
+    static void mergeCommitLog() {
+        writeCommitIndex(allCommits());
+    }
+
+    /** Rebuilds the commit index from the headers of all stored objects. */
+    static void rebuildCommitIndex() {
+        List<String> commits = new ArrayList<>();
+        for (String hash : allObjects()) {
+            if (typeOf(hash) == COMMIT) {
+                commits.add(hash);
+            }
+        }
+        writeCommitIndex(commits);
+    }
+
+    /** Returns the ids of all commits, in lexicographic order. */
+    static List<String> allCommits() {
+        List<String> logged = commitLog();
+        List<String> result = new ArrayList<>();
+        if (COMMIT_INDEX.exists()) {
+            byte[] index = Utils.readContents(COMMIT_INDEX);
+            for (int i = 0; i + RECORD_SIZE <= index.length; i += RECORD_SIZE) {
+                result.add(toHex(index, i));
+            }
+        }
+        if (logged.isEmpty()) {
+            return result;
+        }
+        Set<String> all = new TreeSet<>(result);
+        all.addAll(logged);
+        return new ArrayList<>(all);
+    }
+
+    /** Returns the ids in COMMIT_LOG, which may be missing, in the order
+     *  they were saved. A partial record left by an interrupted append is
+     *  ignored. */
+    private static List<String> commitLog() {
+        List<String> result = new ArrayList<>();
+        if (!COMMIT_LOG.exists()) {
+            return result;
+        }
+        byte[] log = Utils.readContents(COMMIT_LOG);
+        for (int i = 0; i + RECORD_SIZE <= log.length; i += RECORD_SIZE) {
+            result.add(toHex(log, i));
+        }
+        return result;
+    }
+
+    /** Returns the full id of the unique commit whose id starts with
+     *  PREFIX, or null if there is none. Throws a GitletException if more
+     *  than one commit matches. Only O(log N) records of the index are
+     *  read, besides the at most MAX_LOG_RECORDS of the log. */
+    static String resolveCommit(String prefix) {
+        if (prefix.isEmpty() || prefix.length() > Utils.UID_LENGTH
+            || !prefix.matches("[0-9a-f]+")) {
+            return null;
+        }
+        Set<String> matches = new TreeSet<>();
+        for (String hash : commitLog()) {
+            if (hash.startsWith(prefix)) {
+                matches.add(hash);
+            }
+        }
+        if (COMMIT_INDEX.exists()) {
+            matches.addAll(indexMatches(prefix));
+        }
+        if (matches.size() > 1) {
+            throw Utils.error("Commit id %s is ambiguous.", prefix);
+        }
+        return matches.isEmpty() ? null : matches.iterator().next();
+    }
+
+    /** Returns the ids in COMMIT_INDEX that start with PREFIX, stopping
+     *  after the second. */
+    private static List<String> indexMatches(String prefix) {
+        /* Pad the prefix to the lowest id it could denote. */
+        StringBuilder low = new StringBuilder(prefix);
+        while (low.length() < Utils.UID_LENGTH) {
+            low.append('0');
+        }
+        byte[] key = toRaw(low.toString());
+
+        List<String> result = new ArrayList<>();
+        try (RandomAccessFile index = new RandomAccessFile(COMMIT_INDEX, "r")) {
+            long n = index.length() / RECORD_SIZE;
+            byte[] record = new byte[RECORD_SIZE];
+            long lo = 0;
+            long hi = n;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                readRecord(index, mid, record);
+                if (compareRecord(record, 0, key, RECORD_SIZE) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            for (long i = lo; i < n && i < lo + 2; i += 1) {
+                readRecord(index, i, record);
+                String match = toHex(record, 0);
+                if (!match.startsWith(prefix)) {
+                    break;
+                }
+                result.add(match);
+            }
+            return result;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /* FORMAT MIGRATION */
+
+    /** Brings an existing repository up to FORMAT_VERSION and builds any
+     *  of the commit index, commit graph, message index and changed-paths
+     *  filters that it lacks, holding the repository lock if there is
+     *  anything to do. */
+    static void migrate() {
+        if (FORMAT_FILE.exists() && formatVersion() == FORMAT_VERSION && COMMIT_INDEX.exists()
+            && Repository.TMP_DIR.isDirectory() && CommitGraph.GRAPH_FILE.exists()
+            && MessageIndex.INDEX_DIR.isDirectory() && ChangedPaths.PATHS_DIR.isDirectory()) {
+            return;
+        }
+        RepositoryLock lock = RepositoryLock.acquire();
+        try {
+            Repository.TMP_DIR.mkdir();
+            int version = FORMAT_FILE.exists() ? formatVersion() : 0;
+            if (version > FORMAT_VERSION) {
+                throw Utils.error("Repository format %d is newer than this gitlet supports.",
+                                  version);
+            }
+            if (version < 1) {
+                fanOut();
+            }
+            if (version < 2) {
+                addHeaders();
+            }
+            if (version != FORMAT_VERSION) {
+                writeFormat();
+            } else if (!COMMIT_INDEX.exists()) {
+                rebuildCommitIndex();
+            }
+            if (!CommitGraph.GRAPH_FILE.exists()) {
+                CommitGraph.rebuild();
+            }
+            if (!MessageIndex.INDEX_DIR.isDirectory()) {
+                MessageIndex.rebuild();
+            }
+            if (!ChangedPaths.PATHS_DIR.isDirectory()) {
+                ChangedPaths.rebuild();
+            }
+            if (COMMIT_LOG.exists()) {
+                mergeCommitLog();
+            }
+        } finally {
+            lock.close();
+        }
+    }
+
+    /** Returns the version recorded in FORMAT_FILE. */
+    private static int formatVersion() {
+        return Integer.parseInt(Utils.readContentsAsString(FORMAT_FILE).trim());
+    }
+
+
+    /** Records the current format version for a new or migrated repository. */
+    static void writeFormat() {
+        Utils.writeContents(FORMAT_FILE, Integer.toString(FORMAT_VERSION));
+    }
+
+    /** Moves every object of a flat objects directory into its fan-out
+     *  subdirectory and builds the commit index along the way. */
+    private static void fanOut() {
+        List<String> flat = Utils.plainFilenamesIn(Repository.OBJECTS_DIR);
+        List<String> commits = new ArrayList<>();
+        for (String hash : flat) {
+            File source = join(Repository.OBJECTS_DIR, hash);
+            try {
+                Utils.readObject(source, Commit.class);
+                commits.add(hash);
+            } catch (RuntimeException excp) {
+                /* Not a commit object. */
+            }
+            File target = objectFile(hash);
+            target.getParentFile().mkdir();
+            if (!source.renameTo(target)) {
+                throw Utils.error("Could not migrate object %s.", hash);
+            }
+        }
+        /* FLAT is already sorted, so the index can be written in one go. */
+        writeCommitIndex(commits);
+    }
+
+    /** Prefixes every headerless object with its header, taking the
+     *  commit index as the list of commits. */
+    private static void addHeaders() {
+        Set<String> commits = new HashSet<>(allCommits());
+        for (String hash : allObjects()) {
+            File file = objectFile(hash);
+            byte type = commits.contains(hash) ? COMMIT : BLOB;
+            Utils.writeContents(file, Fsync.OBJECTS, header(type, Compressor.NONE),
+                                Utils.readContents(file));
+        }
+    }
+
+    /** Writes the sorted list COMMITS, which includes every commit in
+     *  COMMIT_LOG, as the commit index, and deletes the log. */
+    private static void writeCommitIndex(List<String> commits) {
+        byte[] index = new byte[commits.size() * RECORD_SIZE];
+        for (int i = 0; i < commits.size(); i += 1) {
+            System.arraycopy(toRaw(commits.get(i)), 0, index, i * RECORD_SIZE, RECORD_SIZE);
+        }
+        Utils.writeContents(COMMIT_INDEX, index);
+        COMMIT_LOG.delete();
+    }
+
+    /* HELPERS */
+
+    /** Returns the header of an object of the given TYPE stored with the
+     *  compression CODEC. */
+    private static byte[] header(byte type, Compressor codec) {
+        return new byte[] {MAGIC_0, MAGIC_1, type, codec.id()};
+    }
+
+    /** Checks that STORED, the stored bytes of object HASH, start with the
+     *  header of an object of the given TYPE. */
+    private static void checkHeader(String hash, byte[] stored, byte type) {
+        if (stored.length < HEADER_SIZE || stored[0] != MAGIC_0 || stored[1] != MAGIC_1) {
+            throw Utils.error("Object %s is corrupt.", hash);
+        }
+        if (stored[2] != type) {
+            throw Utils.error("Object %s is not a %s.", hash, typeName(type));
+        }
+    }
+
+    /** Returns the name of the object type TYPE. */
+    private static String typeName(byte type) {
+        switch (type) {
+            case COMMIT:
+                return "commit";
+            case BLOB:
+                return "blob";
+            case TREE:
+                return "tree";
+            default:
+                return "object";
+        }
+    }
+
+    /** Reads record number I of INDEX into RECORD. */
+    private static void readRecord(RandomAccessFile index, long i, byte[] record)
+        throws IOException {
+        index.seek(i * RECORD_SIZE);
+        index.readFully(record);
+    }
+
+    /** Compares the LEN bytes of A starting at OFFSET with the first LEN
+     *  bytes of B as unsigned values. */
+    private static int compareRecord(byte[] a, int offset, byte[] b, int len) {
+        for (int i = 0; i < len; i += 1) {
+            int cmp = (a[offset + i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Converts the 40-digit hex id HASH to its 20 raw bytes. */
+    static byte[] toRaw(String hash) {
+        byte[] raw = new byte[RECORD_SIZE];
+        for (int i = 0; i < RECORD_SIZE; i += 1) {
+            raw[i] = (byte) ((Character.digit(hash.charAt(2 * i), 16) << 4)
+                             | Character.digit(hash.charAt(2 * i + 1), 16));
+        }
+        return raw;
+    }
+
+    /** Converts the 20 raw bytes of RAW starting at OFFSET to a hex id. */
+    static String toHex(byte[] raw, int offset) {
+        char[] result = new char[Utils.UID_LENGTH];
+        for (int i = 0; i < RECORD_SIZE; i += 1) {
+            int b = raw[offset + i] & 0xff;
+            result[2 * i] = HEX_DIGITS[b >>> 4];
+            result[2 * i + 1] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(result);
+    }
+}
@@ -0,0 +1,416 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import static gitlet.Utils.join;
+
+/** A packfile: many objects stored in one file, written by the gc command.
+ *
+ *  pack-ID.pack holds PACK_HEADER followed by one entry per object:
+ *      kind (1 byte) | base offset (8, only if kind is DELTA) |
+ *      codec (1) | stored length (8) | stored bytes.
+ *  The kind is the object's type byte, or DELTA for an object stored as a
+ *  Delta against the entry at base offset in the same pack; the stored
+ *  bytes are the contents (or the delta) compressed with the codec.
+ *
+ *  pack-ID.idx holds INDEX_HEADER, a fan-out table of 256 cumulative counts
+ *  of ids by their first byte, the sorted raw ids, and the pack offset of
+ *  the entry for each id. Both files are memory-mapped, so looking up an
+ *  object is a binary search over mapped memory.
+ *
+ *  @author Jiehao Guan
+ */
+class Pack {
+
+    /** Directory holding all packfiles. */
+    static final File PACK_DIR = join(Repository.OBJECTS_DIR, "pack");
+
+    /** Kind byte of an entry stored as a delta. */
+    private static final byte DELTA = 'd';
+    /** Magic bytes and version that start a pack and its index. */
+    private static final byte[] PACK_HEADER = {'g', 'l', 'p', 1};
+    private static final byte[] INDEX_HEADER = {'g', 'l', 'x', 1};
+    /** Offsets within an index of its parts. */
+    private static final int FANOUT = INDEX_HEADER.length;
+    private static final int IDS = FANOUT + 256 * 4;
+    /** Size in bytes of a raw id. */
+    private static final int ID_SIZE = Utils.UID_LENGTH / 2;
+
+    /** A pack is closed once it grows past this size, so that it can
+     *  always be mapped as a whole. */
+    static final long MAX_PACK_SIZE = 1L << 30;
+
+    /** The packs of this repository, loaded when first needed, and the
+     *  modification time of PACK_DIR when they were listed. */
+    private static List<Pack> _packs;
+    private static long _packsListed;
+
+    /** The pack file, its mapped contents and mapped index. */
+    private final File _file;
+    private final MappedByteBuffer _data;
+    private final MappedByteBuffer _index;
+    /** Number of objects in this pack. */
+    private final int _count;
+
+    /** Maps the pack whose index is INDEXFILE. */
+    private Pack(File indexFile) throws IOException {
+        String name = indexFile.getName();
+        _file = join(PACK_DIR, name.substring(0, name.length() - ".idx".length()) + ".pack");
+        _index = map(indexFile);
+        _data = map(_file);
+        for (int i = 0; i < INDEX_HEADER.length; i += 1) {
+            if (_index.get(i) != INDEX_HEADER[i] || _data.get(i) != PACK_HEADER[i]) {
+                throw Utils.error("Pack %s is corrupt.", _file.getName());
+            }
+        }
+        _count = _index.getInt(FANOUT + 255 * 4);
+    }
+
+    /** Returns all packs of this repository. They are listed again if
+     *  packs were added or removed since, as by another process. */
+    static synchronized List<Pack> all() {
+        long listed = PACK_DIR.lastModified();
+        if (_packs == null || listed != _packsListed) {
+            List<Pack> packs = new ArrayList<>();
+            List<String> names = Utils.plainFilenamesIn(PACK_DIR);
+            if (names != null) {
+                for (String name : names) {
+                    if (name.startsWith("pack-") && name.endsWith(".idx")) {
+                        try {
+                            packs.add(new Pack(join(PACK_DIR, name)));
+                        } catch (IOException excp) {
+                            throw new IllegalArgumentException(excp.getMessage());
+                        }
+                    }
+                }
+            }
+            _packs = packs;
+            _packsListed = listed;
+        }
+        return _packs;
+    }
+
+    /** Forgets the loaded packs, so that they are listed again when next
+     *  needed. */
+    static synchronized void reset() {
+        _packs = null;
+    }
+
+    /** Returns the pack holding the object HASH, or null if none does. */
+    static Pack containing(String hash) {
+        List<Pack> packs = all();
+        if (packs.isEmpty()) {
+            return null;
+        }
+        byte[] raw = ObjectStore.toRaw(hash);
+        for (Pack pack : packs) {
+            if (pack.offsetOf(raw) >= 0) {
+                return pack;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the pack file itself. */
+    File file() {
+        return _file;
+    }
+
+    /** Returns the ids of all objects in this pack, in lexicographic order. */
+    List<String> ids() {
+        List<String> result = new ArrayList<>(_count);
+        byte[] raw = new byte[ID_SIZE];
+        for (int i = 0; i < _count; i += 1) {
+            _index.get(IDS + i * ID_SIZE, raw);
+            result.add(ObjectStore.toHex(raw, 0));
+        }
+        return result;
+    }
+
+    /** Returns the type byte of the object HASH in this pack. */
+    byte typeOf(String hash) {
+        long offset = find(hash);
+        while (_data.get((int) offset) == DELTA) {
+            offset = _data.getLong((int) offset + 1);
+        }
+        return _data.get((int) offset);
+    }
+
+    /** Returns the contents of the object HASH in this pack. */
+    byte[] read(String hash) {
+        /* Collect the chain of deltas down to a whole object, then apply
+         * them from the bottom up. */
+        Deque<Long> deltas = new ArrayDeque<>();
+        long offset = find(hash);
+        while (_data.get((int) offset) == DELTA) {
+            deltas.push(offset);
+            offset = _data.getLong((int) offset + 1);
+        }
+        byte[] result = readStored(offset);
+        while (!deltas.isEmpty()) {
+            result = Delta.apply(result, readStored(deltas.pop()));
+        }
+        return result;
+    }
+
+    /** Returns a stream of the contents of the object HASH in this pack.
+     *  Objects not stored as deltas are decompressed straight from the
+     *  mapped pack. */
+    InputStream open(String hash) throws IOException {
+        long offset = find(hash);
+        if (_data.get((int) offset) == DELTA) {
+            return new ByteArrayInputStream(read(hash));
+        }
+        return codecAt(offset).decompress(new BufferInputStream(storedAt(offset)));
+    }
+
+    /** Returns the offset of the entry for the object with the raw id RAW,
+     *  or -1 if this pack does not hold it. */
+    private long offsetOf(byte[] raw) {
+        int first = raw[0] & 0xff;
+        int lo = first == 0 ? 0 : _index.getInt(FANOUT + (first - 1) * 4);
+        int hi = _index.getInt(FANOUT + first * 4);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareId(IDS + mid * ID_SIZE, raw);
+            if (cmp == 0) {
+                return _index.getLong(IDS + _count * ID_SIZE + mid * 8);
+            } else if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the offset of the entry for HASH, which must be in this pack. */
+    private long find(String hash) {
+        long offset = offsetOf(ObjectStore.toRaw(hash));
+        if (offset < 0) {
+            throw Utils.error("Object %s is not in pack %s.", hash, _file.getName());
+        }
+        return offset;
+    }
+
+    /** Compares the id at POSITION in the index with RAW. */
+    private int compareId(int position, byte[] raw) {
+        for (int i = 0; i < ID_SIZE; i += 1) {
+            int cmp = (_index.get(position + i) & 0xff) - (raw[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Returns the position just past the kind and base offset of the
+     *  entry at OFFSET, where its codec byte is. */
+    private int codecPosition(long offset) {
+        return (int) offset + (_data.get((int) offset) == DELTA ? 9 : 1);
+    }
+
+    /** Returns the codec of the entry at OFFSET. */
+    private Compressor codecAt(long offset) {
+        return Compressor.forId(_data.get(codecPosition(offset)));
+    }
+
+    /** Returns a buffer over the stored bytes of the entry at OFFSET. */
+    private ByteBuffer storedAt(long offset) {
+        int position = codecPosition(offset);
+        long length = _data.getLong(position + 1);
+        return _data.slice(position + 9, (int) length);
+    }
+
+    /** Returns the decompressed stored bytes of the entry at OFFSET. */
+    private byte[] readStored(long offset) {
+        try (InputStream in = codecAt(offset).decompress(new BufferInputStream(storedAt(offset)))) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns FILE mapped read-only. */
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /** Writes a new pack. Objects are added one at a time; finish then
+     *  writes the index and moves both files into place. */
+    static class Writer {
+
+        /** The temporary file the pack is written to, and its channel. */
+        private final File _temp;
+        private final FileChannel _out;
+        /** Raw ids and entry offsets of the objects added so far. */
+        private final List<byte[]> _ids = new ArrayList<>();
+        private final List<Long> _offsets = new ArrayList<>();
+
+        Writer() throws IOException {
+            PACK_DIR.mkdir();
+            _temp = Utils.tempFile();
+            _out = FileChannel.open(_temp.toPath(), StandardOpenOption.WRITE);
+            _out.write(ByteBuffer.wrap(PACK_HEADER));
+        }
+
+        /** Returns the number of bytes written so far. */
+        long size() throws IOException {
+            return _out.position();
+        }
+
+        /** Adds the object HASH of the given TYPE, whose contents are read
+         *  from IN, and returns the offset of its entry. */
+        long add(String hash, byte type, InputStream in) throws IOException {
+            return addEntry(hash, type, -1, in);
+        }
+
+        /** Adds the object HASH as DELTA against the entry at BASEOFFSET of
+         *  this pack, and returns the offset of its entry. */
+        long addDelta(String hash, long baseOffset, byte[] delta) throws IOException {
+            return addEntry(hash, DELTA, baseOffset, new ByteArrayInputStream(delta));
+        }
+
+        /** Writes the index, moves the pack and index into place under
+         *  names derived from their contents, and returns the pack file. */
+        File finish() throws IOException {
+            boolean sync = Fsync.OBJECTS.enabled();
+            if (sync) {
+                _out.force(true);
+            }
+            _out.close();
+            Integer[] order = new Integer[_ids.size()];
+            for (int i = 0; i < order.length; i += 1) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(_ids.get(a), _ids.get(b)));
+
+            Codec.Writer index = new Codec.Writer(IDS + order.length * (ID_SIZE + 8));
+            index.putBytes(INDEX_HEADER);
+            int[] fanout = new int[256];
+            for (byte[] id : _ids) {
+                fanout[id[0] & 0xff] += 1;
+            }
+            int total = 0;
+            for (int count : fanout) {
+                total += count;
+                index.putInt(total);
+            }
+            byte[] names = new byte[order.length * ID_SIZE];
+            for (int i = 0; i < order.length; i += 1) {
+                index.putBytes(_ids.get(order[i]));
+                System.arraycopy(_ids.get(order[i]), 0, names, i * ID_SIZE, ID_SIZE);
+            }
+            for (Integer i : order) {
+                index.putLong(_offsets.get(i));
+            }
+
+            String name = "pack-" + Utils.sha1((Object) names);
+            File pack = join(PACK_DIR, name + ".pack");
+            /* The index goes last: a pack is only visible once it has one. */
+            Files.move(_temp.toPath(), pack.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Utils.writeContents(join(PACK_DIR, name + ".idx"), Fsync.OBJECTS,
+                                index.toByteArray());
+            if (sync) {
+                Fsync.syncDirectory(PACK_DIR);
+            }
+            return pack;
+        }
+
+        /** Writes an entry of the given KIND for HASH, with BASEOFFSET if it
+         *  is a delta, whose contents are read from IN. */
+        private long addEntry(String hash, byte kind, long baseOffset, InputStream in)
+            throws IOException {
+            long offset = _out.position();
+            Compressor codec = Compressor.current();
+            ByteBuffer head = ByteBuffer.allocate(kind == DELTA ? 18 : 10);
+            head.put(kind);
+            if (kind == DELTA) {
+                head.putLong(baseOffset);
+            }
+            head.put(codec.id());
+            head.putLong(0);
+            head.flip();
+            _out.write(head);
+            long start = _out.position();
+            OutputStream body = codec.compress(Channels.newOutputStream(new Unclosable(_out)));
+            in.transferTo(body);
+            body.close();
+            long length = _out.position() - start;
+            _out.write(ByteBuffer.allocate(8).putLong(0, length), start - 8);
+            _ids.add(ObjectStore.toRaw(hash));
+            _offsets.add(offset);
+            return offset;
+        }
+    }
+
+    /** A view of a FileChannel whose close does nothing, so that the
+     *  streams written through it can be closed. */
+    private static class Unclosable implements WritableByteChannel {
+        private final FileChannel _channel;
+
+        Unclosable(FileChannel channel) {
+            _channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return _channel.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return _channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** An InputStream over the remaining bytes of a ByteBuffer. */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer _buf;
+
+        BufferInputStream(ByteBuffer buf) {
+            _buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return _buf.hasRemaining() ? _buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!_buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, _buf.remaining());
+            _buf.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -1,26 +1,31 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.text.SimpleDateFormat;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Queue;
-import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 import static gitlet.Utils.join;
-import static gitlet.Utils.plainFilenamesIn;
-import static gitlet.Utils.readContents;
 import static gitlet.Utils.readContentsAsString;
-import static gitlet.Utils.readObject;
-import static gitlet.Utils.serialize;
-import static gitlet.Utils.sha1;
 import static gitlet.Utils.writeContents;
-import static gitlet.Utils.writeObject;
 
 /** Represents a gitlet repository.
  *  TODO: It's a good idea to give a description here of what else this Class
@@ -38,12 +43,27 @@ public class Repository {
     public static final File OBJECTS_DIR = join(GITLET_DIR, "objects");
     /** Directory for branch heads */
     public static final File HEADS_DIR = join(GITLET_DIR, "refs", "heads");
+    /** Directory for temporary files, which are written there and then
+     *  renamed into place (see Utils.tempFile). */
+    public static final File TMP_DIR = join(GITLET_DIR, "tmp");
+    /** Size up to which a blob is read onto the heap to be compared rather
+     *  than mapped from a temporary file. */
+    private static final int SMALL_BLOB = 1 << 20;
+    /** Size of the buffer through which diffs are written. */
+    private static final int DIFF_BUFFER = 1 << 16;
+    /** Size of the buffer through which logs are written. */
+    private static final int LOG_BUFFER = 1 << 16;
+    /** The format of dates in logs, e.g. Thu Nov 9 20:00:05 2017 -0800.
+     *  Unlike a SimpleDateFormat, it is immutable, so one serves every
+     *  commit and thread. */
+    private static final DateTimeFormatter LOG_DATE = DateTimeFormatter
+        .ofPattern("EEE MMM d HH:mm:ss yyyy Z", Locale.US)
+        .withZone(ZoneId.systemDefault());
 
     /** Init command */
     public static void init() {
         if (GITLET_DIR.exists()) {
-            System.out.println("A Gitlet version-control system already exists in the current directory.");
-            System.exit(0);
+            throw Utils.error("A Gitlet version-control system already exists in the current directory.");
         }
 
         // Create directory structure
@@ -51,14 +71,16 @@ public class Repository {
         OBJECTS_DIR.mkdir();
         join(GITLET_DIR, "refs").mkdir();
         HEADS_DIR.mkdir();
+        TMP_DIR.mkdir();
+
+        ObjectStore.writeFormat();
 
         // 1. Create the Genesis Commit
-        Commit initialCommit = new Commit("initial commit", null, new TreeMap<>());
+        Commit initialCommit = new Commit("initial commit", null, Tree.EMPTY_ID);
         
         // 2. Persist the commit
-        String commitHash = sha1((Object) serialize(initialCommit));
-        File commitFile = join(OBJECTS_DIR, commitHash);
-        writeObject(commitFile, initialCommit);
+        initialCommit.save();
+        String commitHash = initialCommit.getHash();
 
         // 3. Create 'master' branch head
         File masterBranch = join(HEADS_DIR, "master");
@@ -68,30 +90,64 @@ public class Repository {
         File head = join(GITLET_DIR, "HEAD");
         writeContents(head, "ref: refs/heads/master");
     }
+
+    /** Checks that the CWD holds a Gitlet repository and upgrades its
+     *  on-disk format if it was written by an older version. */
+    public static void open() {
+        if (!GITLET_DIR.exists()) {
+            throw Utils.error("Not in an initialized Gitlet directory.");
+        }
+        ObjectStore.migrate();
+    }
     
-    /** Add command */
-    public static void add(String fileName) {
-        File file = join(CWD, fileName);
-        if (!file.exists()) {
-            System.out.println("File does not exist.");
-            return;
+    /** Add command: stages each of PATHS, where a directory (such as ".")
+     *  stands for every file under it. The files are hashed, and new blobs
+     *  stored, across all cores, and the index is read and written once. */
+    public static void add(String... paths) {
+        // 1. Expand directories, checking that every path exists first
+        TreeSet<String> fileNames = new TreeSet<>();
+        for (String path : paths) {
+            File file = join(CWD, path);
+            if (!file.exists()) {
+                System.out.println("File does not exist.");
+                return;
+            }
+            if (file.isDirectory()) {
+                fileNames.addAll(workingFiles(file));
+            } else {
+                fileNames.add(workingName(file));
+            }
         }
 
-        // 1. Create a Blob of the current file
-        byte[] contents = readContents(file);
-        String blobHash = sha1((Object) contents);
-    
         // 2. Load the current commit (HEAD) and the current staging area
         Commit head = getHeadCommit();
         Stage stagingArea = Stage.load();
 
-        // 3. If file matches HEAD, remove from staging
-        if (blobHash.equals(head.getSnapshots().get(fileName))) {
-            stagingArea.removeFromAddition(fileName);
-        } else {
-            // Create the blob file in objects folder
-            Utils.writeContents(Utils.join(OBJECTS_DIR, blobHash), contents);
-            stagingArea.add(fileName, blobHash);
+        // 3. Hash each file as a Blob, unless its stat data shows it is
+        //    unchanged since it was last hashed, and create the blob file in
+        //    objects folder unless it is already there or matches HEAD
+        List<String> names = new ArrayList<>(fileNames);
+        List<String> hashes = Workers.map(names, Workers.cpus(), fileName -> {
+            File file = join(CWD, fileName);
+            String blobHash = stagingArea.workingHash(fileName, file);
+            if (blobHash != null && !blobHash.equals(head.getBlob(fileName))) {
+                ObjectStore.writeBlob(blobHash, file);
+            }
+            return blobHash;
+        });
+
+        // 4. If file matches HEAD, remove from staging
+        for (int i = 0; i < names.size(); i += 1) {
+            String fileName = names.get(i);
+            String blobHash = hashes.get(i);
+            if (blobHash == null) {
+                continue;
+            }
+            if (blobHash.equals(head.getBlob(fileName))) {
+                stagingArea.removeFromAddition(fileName);
+            } else {
+                stagingArea.add(fileName, blobHash);
+            }
         }
         stagingArea.save();
     }
@@ -110,15 +166,17 @@ public class Repository {
         }
 
         Commit head = getHeadCommit();
-        // Copy the parent's snapshots as a starting point
-        TreeMap<String, String> newSnapshots = new TreeMap<>(head.getSnapshots());
-        
-        // Add/Update files from the staging area
-        newSnapshots.putAll(stage.getAddedFiles());
+        // Add/Update files from the staging area, and drop those staged
+        // for removal; only the trees above the changed files are rewritten
+        TreeMap<String, String> changes = new TreeMap<>(stage.getAddedFiles());
+        for (String fileName : stage.getRemovedFiles()) {
+            changes.put(fileName, null);
+        }
+        String tree = Tree.update(head.getTree(), changes);
         
         // Create the new commit
         String parentHash = getHeadHash();
-        Commit newCommit = new Commit(message, parentHash, newSnapshots);
+        Commit newCommit = new Commit(message, parentHash, tree);
         
         // Save the commit
         newCommit.save();
@@ -131,12 +189,14 @@ public class Repository {
         stage.save();
     }
 
-    /** Remove command */
-    public static void rm(String fileName) {
+    /** Remove command: PATH names the file as in add, relative to the
+     *  current directory, and may pass through subdirectories. */
+    public static void rm(String path) {
+        String fileName = workingName(join(CWD, path));
         Stage stage = Stage.load();
         Commit head = getHeadCommit();
         boolean isStaged = stage.getAddedFiles().containsKey(fileName);
-        boolean isTracked = head.getSnapshots().containsKey(fileName);
+        boolean isTracked = Tree.lookup(head.getTree(), fileName) != null;
 
         if (!isStaged && !isTracked) {
             System.out.println("No reason to remove the file.");
@@ -151,78 +211,115 @@ public class Repository {
         // 2. If tracked in the current commit, stage for removal
         if (isTracked) {
             stage.stageForRemoval(fileName);
-            // Use restrictedDelete to remove from Working Directory
-            Utils.restrictedDelete(join(CWD, fileName));
+            // Remove from Working Directory
+            deleteWorkingFile(fileName);
         }
 
         stage.save();
     }
 
-    /** Log command */
-    public static void log() {
-        Commit current = getHeadCommit();
-        String currentHash = getHeadHash();
-
-        while (current != null) {
-            System.out.println("===");
-            System.out.println("commit " + currentHash);
-            
-            // For Merges (Optional for now, but good to have)
-            if (current.isMergeCommit()) {
-                System.out.printf("Merge: %s %s%n", 
-                    current.getParent().substring(0, 7), 
-                    current.getSecondParent().substring(0, 7));
+    /** Log command: Prints the first-parent history of HEAD, newest first,
+     *  stopping after LIMIT commits or at the first commit made before
+     *  SINCE, in milliseconds since the epoch. Each commit is printed as it
+     *  is read, through one buffer, while the commits after it are read
+     *  ahead (see CommitWalker), so a short log reads only about the commits
+     *  it shows. */
+    public static void log(int limit, long since) {
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, LOG_BUFFER));
+        try (CommitWalker walker = CommitWalker.firstParent(getHeadHash())) {
+            for (int n = 0; n < limit && walker.hasNext(); n += 1) {
+                Map.Entry<String, Commit> entry = walker.next();
+                if (entry.getValue().getTimestamp().getTime() < since) {
+                    break;
+                }
+                printCommit(out, entry.getValue(), entry.getKey());
             }
+        }
+        out.flush();
+    }
 
-            // Format: Thu Nov 9 20:00:05 2017 -0800
-            // Using "EEE MMM d HH:mm:ss yyyy Z" pattern
-            SimpleDateFormat sdf = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
-            System.out.println("Date: " + sdf.format(current.getTimestamp()));
-            System.out.println(current.getMessage());
-            System.out.println();
-
-            // Move to the parent
-            currentHash = current.getParent();
-            if (currentHash == null) {
-                current = null;
-            } else {
-                current = Utils.readObject(join(OBJECTS_DIR, currentHash), Commit.class);
+    /** Log command for the file PATH: Prints, as log does, the commits of
+     *  the first-parent history of HEAD in which the blob of PATH differs
+     *  from that in their first parent, including its addition and removal.
+     *  Commits whose changed-paths filters rule PATH out are skipped without
+     *  being loaded; the others are checked by looking PATH up in their
+     *  trees and their parents'. */
+    public static void log(String path, int limit, long since) {
+        String fileName = workingName(join(CWD, path));
+        ChangedPaths filters = ChangedPaths.load();
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, LOG_BUFFER));
+        try (CommitWalker walker = CommitWalker.firstParent(getHeadHash(), hash -> {
+                if (filters.mayHaveChanged(hash, fileName)) {
+                    return true;
+                }
+                Metrics.increment("log.filter.skipped");
+                return false;
+            })) {
+            int n = 0;
+            while (n < limit && walker.hasNext()) {
+                Map.Entry<String, Commit> entry = walker.next();
+                Commit commit = entry.getValue();
+                if (commit.getTimestamp().getTime() < since) {
+                    break;
+                }
+                String parent = commit.getParent();
+                String before = parent == null
+                    ? null : Tree.lookup(getCommitFromHash(parent).getTree(), fileName);
+                String after = Tree.lookup(commit.getTree(), fileName);
+                if (Objects.equals(before, after)) {
+                    Metrics.increment("log.filter.false-positives");
+                    continue;
+                }
+                printCommit(out, commit, entry.getKey());
+                n += 1;
             }
         }
+        out.flush();
     }
 
-    /** GlobalLog command */
-    public static void globalLog() {
-        List<String> allObjects = Utils.plainFilenamesIn(OBJECTS_DIR);
-        for (String fileName : allObjects) {
-            // Try to read each file as a Commit; ignore if it's a Blob
-            try {
-                Commit c = Utils.readObject(Utils.join(OBJECTS_DIR, fileName), Commit.class);
-                printCommit(c, fileName);
-            } catch (Exception e) {
-                // Not a commit object, skip it
+    /** GlobalLog command: Prints every commit, in no particular order, up to
+     *  LIMIT of them, leaving out those made before SINCE. */
+    public static void globalLog(int limit, long since) {
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, LOG_BUFFER));
+        int n = 0;
+        // The commit index lists every commit, so blobs are never touched
+        try (CommitWalker walker = new CommitWalker(ObjectStore.allCommits().iterator())) {
+            while (n < limit && walker.hasNext()) {
+                Map.Entry<String, Commit> entry = walker.next();
+                if (entry.getValue().getTimestamp().getTime() >= since) {
+                    printCommit(out, entry.getValue(), entry.getKey());
+                    n += 1;
+                }
             }
         }
+        out.flush();
     }
 
-    /** Find command */
+    /** Find command: Prints the ids of the commits whose message is
+     *  MESSAGE, looking them up in the message index. */
     public static void find(String message) {
-        List<String> allObjects = Utils.plainFilenamesIn(OBJECTS_DIR);
-        boolean found = false;
-        for (String fileName : allObjects) {
-            try {
-                Commit c = Utils.readObject(Utils.join(OBJECTS_DIR, fileName), Commit.class);
-                if (c.getMessage().equals(message)) {
-                    System.out.println(fileName);
-                    found = true;
-                }
-            } catch (Exception e) { /* Skip non-commit objects */ }
+        List<String> hashes = MessageIndex.find(message);
+        for (String hash : hashes) {
+            System.out.println(hash);
         }
-        if (!found) {
+        if (hashes.isEmpty()) {
             System.out.println("Found no commit with that message.");
         }
     }
 
+    /** Search command: Prints the ids of the commits whose messages contain
+     *  every word of QUERY, in any case and as a whole word or part of one,
+     *  oldest first. */
+    public static void search(String query) {
+        List<String> hashes = MessageIndex.search(query);
+        for (String hash : hashes) {
+            System.out.println(hash);
+        }
+        if (hashes.isEmpty()) {
+            System.out.println("Found no commit matching that query.");
+        }
+    }
+
     /** Status command */
     public static void status() {
         if (!GITLET_DIR.exists()) {
@@ -255,11 +352,234 @@ public class Repository {
         }
         System.out.println();
 
-        // 4. Placeholder for Extra Credit
+        // 4. Compare the working directory with HEAD and the staging area.
+        //    Only files whose stat data changed since they were last hashed
+        //    are read.
+        Map<String, String> tracked = getHeadCommit().getSnapshots();
+        TreeMap<String, String> modified = new TreeMap<>();
+        TreeSet<String> untracked = new TreeSet<>();
+        TreeSet<String> workingFiles = new TreeSet<>(workingFiles(CWD));
+        for (String fileName : workingFiles) {
+            boolean staged = stage.getAddedFiles().containsKey(fileName);
+            if (!staged && (!tracked.containsKey(fileName)
+                            || stage.getRemovedFiles().contains(fileName))) {
+                untracked.add(fileName);
+                continue;
+            }
+            String expected = staged ? stage.getAddedFiles().get(fileName) : tracked.get(fileName);
+            if (!expected.equals(stage.workingHash(fileName, join(CWD, fileName)))) {
+                modified.put(fileName, "modified");
+            }
+        }
+        for (String fileName : stage.getAddedFiles().keySet()) {
+            if (!workingFiles.contains(fileName)) {
+                modified.put(fileName, "deleted");
+            }
+        }
+        for (String fileName : tracked.keySet()) {
+            if (!workingFiles.contains(fileName)
+                && !stage.getRemovedFiles().contains(fileName)) {
+                modified.put(fileName, "deleted");
+            }
+        }
+
         System.out.println("=== Modifications Not Staged For Commit ===");
+        for (Map.Entry<String, String> entry : modified.entrySet()) {
+            System.out.println(entry.getKey() + " (" + entry.getValue() + ")");
+        }
         System.out.println();
         System.out.println("=== Untracked Files ===");
+        for (String fileName : untracked) {
+            System.out.println(fileName);
+        }
         System.out.println();
+
+        // Keep what was learned about the working files for next time
+        stage.saveStats();
+    }
+
+    /** diff: Shows the changes to the working files that are not staged:
+     *  the differences between each tracked file as staged, or as in HEAD,
+     *  and its working copy. Only files whose stat data changed since they
+     *  were last hashed are read. */
+    public static void diff() {
+        Stage stage = Stage.load();
+        TreeMap<String, String> index = new TreeMap<>(getHeadCommit().getSnapshots());
+        index.keySet().removeAll(stage.getRemovedFiles());
+        index.putAll(stage.getAddedFiles());
+        OutputStream out = new BufferedOutputStream(System.out, DIFF_BUFFER);
+        for (Map.Entry<String, String> entry : index.entrySet()) {
+            File file = join(CWD, entry.getKey());
+            if (!file.isFile()) {
+                printDiff(out, entry.getKey(), blobLines(entry.getValue()), null);
+            } else if (!entry.getValue().equals(stage.workingHash(entry.getKey(), file))) {
+                printDiff(out, entry.getKey(), blobLines(entry.getValue()),
+                          new Diff.Lines(Diff.map(file)));
+            }
+        }
+        flush(out);
+        stage.saveStats();
+    }
+
+    /** diff --cached: Shows the staged changes: the differences between
+     *  HEAD and the staging area. Only the staged files are looked up in
+     *  HEAD. */
+    public static void diffCached() {
+        Stage stage = Stage.load();
+        String head = getHeadCommit().getTree();
+        TreeMap<String, String> changes = new TreeMap<>(stage.getAddedFiles());
+        for (String fileName : stage.getRemovedFiles()) {
+            changes.put(fileName, null);
+        }
+        OutputStream out = new BufferedOutputStream(System.out, DIFF_BUFFER);
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String old = Tree.lookup(head, change.getKey());
+            if (!Objects.equals(old, change.getValue())) {
+                printDiff(out, change.getKey(), old == null ? null : blobLines(old),
+                          change.getValue() == null ? null : blobLines(change.getValue()));
+            }
+        }
+        flush(out);
+    }
+
+    /** diff [commit id] [commit id]: Shows the differences between the
+     *  snapshots of two commits. Directories and files whose ids agree are
+     *  skipped without being read. */
+    public static void diffCommits(String firstId, String secondId) {
+        String first = findFullHash(firstId);
+        String second = findFullHash(secondId);
+        if (first == null || second == null) {
+            System.out.println("No commit with that id exists.");
+            return;
+        }
+        OutputStream out = new BufferedOutputStream(System.out, DIFF_BUFFER);
+        Tree.diff(getCommitFromHash(first).getTree(), getCommitFromHash(second).getTree(),
+            (path, oldBlob, newBlob) -> printDiff(out, path,
+                oldBlob == null ? null : blobLines(oldBlob),
+                newBlob == null ? null : blobLines(newBlob)));
+        flush(out);
+    }
+
+    /** Writes to OUT the changes from OLDLINES to NEWLINES, the versions of
+     *  the file PATH, either null where it is absent, as a unified diff. */
+    private static void printDiff(OutputStream out, String path, Diff.Lines oldLines,
+                                  Diff.Lines newLines) {
+        try {
+            Diff.unified(out, path, oldLines, newLines);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Flushes OUT. */
+    private static void flush(OutputStream out) {
+        try {
+            out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Blame command: Prints each line of the file PATH as of HEAD after
+     *  the abbreviated id and date of the commit of the first-parent history
+     *  that last changed it. Lines that came in through a merge are given
+     *  to the merge commit.
+     *
+     *  The history is walked newest first, tracking where each line still
+     *  unaccounted for sits in the version at hand. Only the commits in
+     *  which the file's blob changed are looked at (see log), and only for
+     *  them are the two versions diffed; the lines added are theirs, and
+     *  the rest are carried back to the parent's version, which is the
+     *  version at hand for the next such commit, so every blob is read
+     *  once. The walk stops once every line has its commit. */
+    public static void blame(String path) {
+        String fileName = workingName(join(CWD, path));
+        String headHash = getHeadHash();
+        Commit head = getCommitFromHash(headHash);
+        String blob = Tree.lookup(head.getTree(), fileName);
+        if (blob == null) {
+            throw Utils.error("File does not exist in that commit.");
+        }
+        Diff.Lines current = blobLines(blob);
+        if (current.isBinary()) {
+            throw Utils.error("Cannot blame binary file %s.", fileName);
+        }
+        Diff.Lines lines = current;
+
+        /* origin[i] is the line of the HEAD version that line i of the
+         * version at hand became, or -1 if it did not survive. */
+        int[] origin = new int[current.size()];
+        for (int i = 0; i < origin.length; i += 1) {
+            origin[i] = i;
+        }
+        String[] owners = new String[current.size()];
+        Map<String, Commit> commits = new TreeMap<>();
+        int remaining = owners.length;
+        Map.Entry<String, Commit> oldest = Map.entry(headHash, head);
+        ChangedPaths filters = ChangedPaths.load();
+        try (CommitWalker walker = CommitWalker.firstParent(
+                 headHash, hash -> filters.mayHaveChanged(hash, fileName))) {
+            while (remaining > 0 && walker.hasNext()) {
+                Map.Entry<String, Commit> entry = walker.next();
+                oldest = entry;
+                String parent = entry.getValue().getParent();
+                String parentBlob = parent == null
+                    ? null : Tree.lookup(getCommitFromHash(parent).getTree(), fileName);
+                if (Objects.equals(parentBlob, blob)) {
+                    continue;
+                }
+                commits.put(entry.getKey(), entry.getValue());
+                Diff.Lines older = blobLines(parentBlob);
+                int[] olderOrigin = new int[older.size()];
+                Arrays.fill(olderOrigin, -1);
+                int i = 0;
+                int j = 0;
+                for (Diff.Hunk hunk : Diff.diff(older, current)) {
+                    for (; j < hunk.bStart; i += 1, j += 1) {
+                        olderOrigin[i] = origin[j];
+                    }
+                    for (; j < hunk.bEnd; j += 1) {
+                        if (origin[j] >= 0) {
+                            owners[origin[j]] = entry.getKey();
+                            remaining -= 1;
+                        }
+                    }
+                    i = hunk.aEnd;
+                }
+                for (; j < current.size(); i += 1, j += 1) {
+                    olderOrigin[i] = origin[j];
+                }
+                blob = parentBlob;
+                current = older;
+                origin = olderOrigin;
+            }
+        }
+        /* Should the history end before every line is accounted for, the
+         * lines left are attributed to the oldest commit reached. */
+        for (int k = 0; k < owners.length; k += 1) {
+            if (owners[k] == null) {
+                owners[k] = oldest.getKey();
+                commits.put(oldest.getKey(), oldest.getValue());
+            }
+        }
+
+        OutputStream out = new BufferedOutputStream(System.out, DIFF_BUFFER);
+        int width = Integer.toString(owners.length).length();
+        try {
+            for (int k = 0; k < owners.length; k += 1) {
+                Commit commit = commits.get(owners[k]);
+                out.write(String.format("%s (%s %" + width + "d) ", owners[k].substring(0, 7),
+                                        LOG_DATE.format(commit.getTimestamp().toInstant()),
+                                        k + 1).getBytes(StandardCharsets.UTF_8));
+                lines.write(out, k, k + 1);
+            }
+            if (!lines.hasFinalNewline()) {
+                out.write('\n');
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        flush(out);
     }
 
     /** Checkout command 1: checkout -- [file name] */
@@ -267,8 +587,10 @@ public class Repository {
         checkoutFileFromCommit(getHeadHash(), fileName);
     }
 
-    /** Checkout command 2: checkout [commit id] -- [file name] */
-    public static void checkoutFileFromCommit(String commitId, String fileName) {
+    /** Checkout command 2: checkout [commit id] -- [file name]. PATH names
+     *  the file as in add, relative to the current directory. */
+    public static void checkoutFileFromCommit(String commitId, String path) {
+        String fileName = workingName(join(CWD, path));
         // Handle shortened IDs (prefix search)
         String fullHash = findFullHash(commitId);
         if (fullHash == null) {
@@ -276,18 +598,17 @@ public class Repository {
             return;
         }
 
-        File commitFile = join(OBJECTS_DIR, fullHash);
-        Commit c = readObject(commitFile, Commit.class);
+        Commit c = getCommitFromHash(fullHash);
 
-        if (!c.getSnapshots().containsKey(fileName)) {
+        // Get the blob hash and write its contents to the CWD
+        String blobHash = c.getBlob(fileName);
+        if (blobHash == null) {
             System.out.println("File does not exist in that commit.");
             return;
         }
-
-        // Get the blob hash and write its contents to the CWD
-        String blobHash = c.getSnapshots().get(fileName);
-        byte[] contents = readContents(join(OBJECTS_DIR, blobHash));
-        writeContents(join(CWD, fileName), contents);
+        File file = join(CWD, fileName);
+        file.getParentFile().mkdirs();
+        ObjectStore.copyBlob(blobHash, file);
     }
 
     /** Checkout command 3: checkout [branchname] */
@@ -304,16 +625,17 @@ public class Repository {
 
         // Load the target commit
         String targetCommitHash = readContentsAsString(branchFile);
-        Commit targetCommit = readObject(join(OBJECTS_DIR, targetCommitHash), Commit.class);
+        Commit targetCommit = getCommitFromHash(targetCommitHash);
 
         // Handle the file swapping
-        restoreSnapshot(targetCommit);
+        Stage stage = Stage.load();
+        restoreSnapshot(targetCommit, stage);
 
         // Update the HEAD pointer to point to the new branch
         writeContents(join(GITLET_DIR, "HEAD"), "ref: refs/heads/" + branchName);
         
-        // Clear and save the staging area
-        Stage stage = new Stage(); 
+        // Clear and save the staging area, keeping its cached stat data
+        stage.clear();
         stage.save();
     }
 
@@ -366,24 +688,34 @@ public class Repository {
         }
 
         // 2. Load the target commit
-        Commit targetCommit = Utils.readObject(Utils.join(OBJECTS_DIR, fullHash), Commit.class);
+        Commit targetCommit = getCommitFromHash(fullHash);
         
         // 3. Reuse the "Untracked File" and "File Restoration" logic
         // This is the same logic used in checkout branch
-        restoreSnapshot(targetCommit); 
+        Stage stage = Stage.load();
+        restoreSnapshot(targetCommit, stage); 
 
         // 4. Move the current branch pointer to this commit
         updateBranchPointer(fullHash);
 
-        // 5. Clear the staging area
-        Stage stage = new Stage();
+        // 5. Clear the staging area, keeping its cached stat data
+        stage.clear();
         stage.save();
     }
 
+    /** Gc command: merges the commits saved since the last gc into the
+     *  commit index and packs all objects, storing similar versions of
+     *  files as deltas of each other. */
+    public static void gc() {
+        ObjectStore.mergeCommitLog();
+        ObjectStore.repack();
+    }
+
     /** Merge command */
     public static void merge(String branchName) {
         // 1. Validation (Staged changes, branch existence, etc.)
-        validateMerge(branchName);
+        Stage stage = Stage.load();
+        validateMerge(branchName, stage);
 
         String givenHash = readContentsAsString(join(HEADS_DIR, branchName));
         String headHash = getHeadHash();
@@ -400,43 +732,65 @@ public class Repository {
             return;
         }
 
-        // 3. Collect all unique filenames across the three commits
-        Commit split = getCommitFromHash(splitHash);
+        // 3. Compute the whole merge result in memory, as changes to HEAD.
+        //    Only the files whose blobs differ between the three commits
+        //    are visited; identical subtrees are skipped by their ids.
         Commit head = getCommitFromHash(headHash);
-        Commit given = getCommitFromHash(givenHash);
-        Set<String> allFiles = new HashSet<>();
-        allFiles.addAll(split.getSnapshots().keySet());
-        allFiles.addAll(head.getSnapshots().keySet());
-        allFiles.addAll(given.getSnapshots().keySet());
-
-        boolean conflictOccurred = false;
-
-        for (String file : allFiles) {
-            String sHash = split.getSnapshots().get(file);
-            String hHash = head.getSnapshots().get(file);
-            String gHash = given.getSnapshots().get(file);
-
+        TreeMap<String, String> changes = new TreeMap<>();
+        List<Map.Entry<String, String>> toWrite = new ArrayList<>();
+        List<String> toDelete = new ArrayList<>();
+        TreeMap<String, File> merged = new TreeMap<>();
+        boolean[] conflict = {false};
+
+        Tree.merge(getCommitFromHash(splitHash).getTree(), head.getTree(),
+                   getCommitFromHash(givenHash).getTree(), (file, sHash, hHash, gHash) -> {
             // Case 1 & 5: Modified in given only, or added in given only
             if (Objects.equals(sHash, hHash) && !Objects.equals(sHash, gHash)) {
                 if (gHash == null) {
-                    rm(file); // Case 6: Removed in given, unmodified in head
+                    changes.put(file, null); // Case 6: Removed in given, unmodified in head
+                    toDelete.add(file);
                 } else {
-                    checkoutFileFromCommit(givenHash, file);
-                    add(file);
+                    changes.put(file, gHash);
+                    toWrite.add(Map.entry(file, gHash));
                 }
             }
-            // Case 8: Conflict logic
+            // Case 8: Modified differently in both: merge them line by line
             else if (!Objects.equals(sHash, hHash) && !Objects.equals(sHash, gHash) 
                     && !Objects.equals(hHash, gHash)) {
-                handleConflict(file, hHash, gHash);
-                conflictOccurred = true;
+                File result = Utils.tempFile();
+                conflict[0] |= mergeContents(sHash, hHash, gHash, result);
+                String blobHash = ObjectStore.hashBlob(result);
+                ObjectStore.writeBlob(blobHash, result);
+                changes.put(file, blobHash);
+                merged.put(file, result);
             }
             // Other cases: No action needed (Keep current version)
+        });
+
+        // 4. Apply the result to the working tree
+        for (String file : toDelete) {
+            deleteWorkingFile(file);
+            stage.forget(file);
         }
+        Workers.forEach(toWrite, entry -> {
+            File file = join(CWD, entry.getKey());
+            file.getParentFile().mkdirs();
+            ObjectStore.copyBlob(entry.getValue(), file);
+            stage.recordWrite(entry.getKey(), file, entry.getValue());
+        });
+        for (Map.Entry<String, File> entry : merged.entrySet()) {
+            File file = join(CWD, entry.getKey());
+            file.getParentFile().mkdirs();
+            moveFile(entry.getValue(), file);
+            stage.recordWrite(entry.getKey(), file, changes.get(entry.getKey()));
+        }
+        Metrics.add("merge.files.written", toWrite.size() + merged.size());
+        Metrics.add("merge.files.removed", toDelete.size());
 
-        // 4. Finalize the Merge Commit
+        // 5. Finalize the Merge Commit
         String msg = "Merged " + branchName + " into " + getHeadBranchName() + ".";
-        finishMergeCommit(msg, headHash, givenHash, conflictOccurred);
+        String tree = Tree.update(head.getTree(), changes);
+        finishMergeCommit(msg, headHash, givenHash, tree, stage, conflict[0]);
     }
     
     /** Helper method to get the head */
@@ -452,8 +806,7 @@ public class Repository {
         String headHash = Utils.readContentsAsString(Utils.join(GITLET_DIR, branchPath));
         
         // 4. Load the Commit object from the objects folder
-        File commitFile = Utils.join(OBJECTS_DIR, headHash);
-        return Utils.readObject(commitFile, Commit.class);
+        return getCommitFromHash(headHash);
     }
 
     /** Returns the SHA-1 hash of the current HEAD commit */
@@ -501,91 +854,139 @@ public class Repository {
         }
     }
 
-    /** Prints a commit in the format specified by the 'log' command. */
-    private static void printCommit(Commit c, String hash) {
-        System.out.println("===");
-        System.out.println("commit " + hash);
+    /** Prints the commit C, whose id is HASH, to OUT in the format of the
+     *  'log' command. */
+    private static void printCommit(PrintStream out, Commit c, String hash) {
+        out.println("===");
+        out.println("commit " + hash);
 
         // Only print 'Merge:' line if it has a second parent
         if (c.isMergeCommit()) {
-            System.out.printf("Merge: %s %s%n", 
-                c.getParent().substring(0, 7), 
+            out.printf("Merge: %s %s%n",
+                c.getParent().substring(0, 7),
                 c.getSecondParent().substring(0, 7));
         }
 
-        SimpleDateFormat sdf = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
-        System.out.println("Date: " + sdf.format(c.getTimestamp()));
-        System.out.println(c.getMessage());
-        System.out.println();
+        out.println("Date: " + LOG_DATE.format(c.getTimestamp().toInstant()));
+        out.println(c.getMessage());
+        out.println();
     }
 
-    /** Prefix matching. */
+    /** Prefix matching, via a binary search of the commit index. */
     private static String findFullHash(String prefix) {
-        if (prefix.length() == 40) return prefix;
-        List<String> allObjects = plainFilenamesIn(OBJECTS_DIR);
-        for (String hash : allObjects) {
-            if (hash.startsWith(prefix)) return hash;
-        }
-        return null;
+        return ObjectStore.resolveCommit(prefix);
     }
 
-    /** A helper that synchronizes the Working Directory with a target commit. */
-    private static void restoreSnapshot(Commit targetCommit) {
-        Commit currentCommit = getHeadCommit();
-        List<String> cwdFiles = Utils.plainFilenamesIn(CWD);
+    /** A helper that synchronizes the Working Directory with a target commit.
+     *  Only paths whose blob differs between HEAD and TARGETCOMMIT, or whose
+     *  working file does not hold the target blob, are touched; the cached
+     *  stat data in STAGE tells which files are already up to date without
+     *  reading them, and is updated for the files written. */
+    private static void restoreSnapshot(Commit targetCommit, Stage stage) {
+        // The files added and removed by the target, from its trees
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        Tree.diff(getHeadCommit().getTree(), targetCommit.getTree(), (path, oldBlob, newBlob) -> {
+            if (oldBlob == null) {
+                added.add(path);
+            } else if (newBlob == null) {
+                removed.add(path);
+            }
+        });
 
         // 1. Safety Check: Is there an untracked file that would be overwritten
-        for (String file : cwdFiles) {
-            // If file is NOT tracked by current commit BUT IS tracked by target commit
-            if (!currentCommit.getSnapshots().containsKey(file) 
-                && targetCommit.getSnapshots().containsKey(file)) {
-                System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                System.exit(0);
+        for (String fileName : added) {
+            if (join(CWD, fileName).isFile()) {
+                throw Utils.error("There is an untracked file in the way; delete it, or add and commit it first.");
             }
         }
 
         // 2. Delete files tracked in current but NOT in target
-        for (String fileName : currentCommit.getSnapshots().keySet()) {
-            if (!targetCommit.getSnapshots().containsKey(fileName)) {
-                Utils.restrictedDelete(Utils.join(CWD, fileName));
+        for (String fileName : removed) {
+            if (deleteWorkingFile(fileName)) {
+                Metrics.increment("checkout.files.removed");
             }
+            stage.forget(fileName);
         }
 
-        // 3. Write all files from target commit to CWD
+        // 3. Write the files from target commit whose contents differ,
+        //    spreading the reads and writes over the I/O threads
+        List<Map.Entry<String, String>> changed = new ArrayList<>();
         for (Map.Entry<String, String> entry : targetCommit.getSnapshots().entrySet()) {
             String fileName = entry.getKey();
-            String blobHash = entry.getValue();
-            byte[] contents = Utils.readContents(Utils.join(OBJECTS_DIR, blobHash));
-            Utils.writeContents(Utils.join(CWD, fileName), contents);
+            if (entry.getValue().equals(stage.workingHash(fileName, join(CWD, fileName)))) {
+                Metrics.increment("checkout.files.skipped");
+            } else {
+                changed.add(entry);
+            }
         }
+        Workers.forEach(changed, entry -> {
+            File file = join(CWD, entry.getKey());
+            file.getParentFile().mkdirs();
+            ObjectStore.copyBlob(entry.getValue(), file);
+            stage.recordWrite(entry.getKey(), file, entry.getValue());
+            Metrics.increment("checkout.files.written");
+        });
     }
     
-    /** Find latest common ancestor using BFS */
-    private static String findSplitPoint(String currentHash, String givenHash) {
-        Set<String> ancestorsOfCurrent = new HashSet<>();
-        Queue<String> q = new LinkedList<>();
-        
-        // 1. Traverse all ancestors of current branch and store in a Set
-        q.add(currentHash);
-        while (!q.isEmpty()) {
-            String curr = q.poll();
-            if (curr != null && ancestorsOfCurrent.add(curr)) {
-                Commit c = getCommitFromHash(curr);
-                q.add(c.getParent());
-                if (c.getSecondParent() != null) q.add(c.getSecondParent());
+    /** Returns the names of all files under DIR, a directory in the working
+     *  tree, relative to the CWD and with '/' separators, in sorted order.
+     *  Directories named .gitlet are skipped. */
+    private static List<String> workingFiles(File dir) {
+        List<String> result = new ArrayList<>();
+        listWorkingFiles(dir, result);
+        Collections.sort(result);
+        return result;
+    }
+
+    /** Adds the names of all files under DIR to RESULT. */
+    private static void listWorkingFiles(File dir, List<String> result) {
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                if (!entry.getName().equals(".gitlet")) {
+                    listWorkingFiles(entry, result);
+                }
+            } else if (entry.isFile()) {
+                result.add(workingName(entry));
             }
         }
+    }
 
-        // 2. Traverse ancestors of given branch; the first one found in the Set is the LCA
-        q.add(givenHash);
-        while (!q.isEmpty()) {
-            String curr = q.poll();
-            if (ancestorsOfCurrent.contains(curr)) return curr;
-            Commit c = getCommitFromHash(curr);
-            if (c.getParent() != null) q.add(c.getParent());
-            if (c.getSecondParent() != null) q.add(c.getSecondParent());
+    /** Returns the name by which FILE, which must be in the working tree, is
+     *  tracked: its path relative to the CWD, with '/' separators. */
+    private static String workingName(File file) {
+        Path path = CWD.toPath().toAbsolutePath().normalize()
+            .relativize(file.toPath().toAbsolutePath().normalize());
+        if (path.toString().isEmpty() || path.startsWith("..") || path.startsWith(".gitlet")) {
+            throw Utils.error("%s is outside the repository.", file.getPath());
+        }
+        return path.toString().replace(File.separatorChar, '/');
+    }
+
+    /** Deletes the working file named FILENAME, and any directories above
+     *  it that this leaves empty. Returns true if the file was deleted. */
+    private static boolean deleteWorkingFile(String fileName) {
+        File file = join(CWD, fileName);
+        if (!file.isFile() || !file.delete()) {
+            return false;
         }
-        return null;
+        for (File dir = file.getParentFile(); dir != null && !dir.equals(CWD);
+             dir = dir.getParentFile()) {
+            if (!dir.delete()) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the best common ancestor of the two commits, found from the
+     *  commit graph without loading the commits themselves. */
+    private static String findSplitPoint(String currentHash, String givenHash) {
+        return CommitGraph.load().mergeBase(currentHash, givenHash);
     }
 
     /** Helper method to load a Commit object from the objects directory */
@@ -593,36 +994,25 @@ public class Repository {
         if (hash == null) {
             return null;
         }
-        File commitFile = Utils.join(OBJECTS_DIR, hash);
-        if (!commitFile.exists()) {
+        if (!ObjectStore.contains(hash)) {
             return null;
         }
-        return Utils.readObject(commitFile, Commit.class);
+        return Commit.load(hash);
     }
 
-    private static void finishMergeCommit(String msg, String headHash, String givenHash, boolean conflict) {
-        // 1. Load the current state
-        Commit head = getHeadCommit();
-        Stage stage = Stage.load();
-        
-        // 2. Prepare the new snapshot
-        // Start with the current HEAD's files and apply staged changes
-        TreeMap<String, String> newSnapshots = new TreeMap<>(head.getSnapshots());
-        newSnapshots.putAll(stage.getAddedFiles());
-        for (String fileName : stage.getRemovedFiles()) {
-            newSnapshots.remove(fileName);
-        }
-
-        // 3. Create and save the Merge Commit
-        Commit mergeCommit = new Commit(msg, headHash, newSnapshots);
+    /** Commits TREE, the result of a merge, with the message MSG and
+     *  parents HEADHASH and GIVENHASH, and saves STAGE, which is cleared. */
+    private static void finishMergeCommit(String msg, String headHash, String givenHash,
+                                          String tree, Stage stage, boolean conflict) {
+        // 1. Create and save the Merge Commit
+        Commit mergeCommit = new Commit(msg, headHash, tree);
         mergeCommit.setSecondParent(givenHash); // Link the second branch!
         mergeCommit.save();
 
-        // 4. Update the current branch pointer to this new commit
-        String currentBranch = getHeadBranchName();
-        Utils.writeContents(Utils.join(HEADS_DIR, currentBranch), mergeCommit.getHash());
+        // 2. Update the current branch pointer to this new commit
+        updateBranchPointer(mergeCommit.getHash());
 
-        // 5. Clean up
+        // 3. Clean up
         stage.clear();
         stage.save();
 
@@ -631,39 +1021,73 @@ public class Repository {
         }
     }
 
-    /** Construct the file content when conflicts occur */
-    private static void handleConflict(String fileName, String currentBlob, String givenBlob) {
-        String headContent = (currentBlob == null) ? "" : Utils.readContentsAsString(join(OBJECTS_DIR, currentBlob));
-        String givenContent = (givenBlob == null) ? "" : Utils.readContentsAsString(join(OBJECTS_DIR, givenBlob));
+    /** Writes to RESULT the three-way merge of the blobs OURS and THEIRS
+     *  from their common ancestor BASE, any of which may be null for a
+     *  missing file, and returns true if it has conflicts. Binary files
+     *  are not merged by line: both versions are kept whole, as one
+     *  conflict. The blobs are mapped from temporary files rather than read
+     *  onto the heap, so large files can be merged. */
+    private static boolean mergeContents(String base, String ours, String theirs, File result) {
+        Diff.Lines baseLines = blobLines(base);
+        Diff.Lines oursLines = blobLines(ours);
+        Diff.Lines theirsLines = blobLines(theirs);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(result))) {
+            if (baseLines.isBinary() || oursLines.isBinary() || theirsLines.isBinary()) {
+                Diff3.conflict(oursLines, theirsLines, out);
+                return true;
+            }
+            return Diff3.merge(baseLines, oursLines, theirsLines, out) > 0;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
 
-        String conflictText = "<<<<<<< HEAD\n" + headContent + "=======\n" + givenContent + ">>>>>>>\n";
-        Utils.writeContents(join(CWD, fileName), conflictText);
-        
-        // Always stage the conflict result
-        Stage stage = Stage.load();
-        stage.add(fileName, Utils.sha1(conflictText)); 
-        stage.save();
+    /** Returns the lines of the blob HASH, or of an empty file if HASH is
+     *  null. Blobs of at most SMALL_BLOB bytes, loose or packed, are read
+     *  onto the heap through the object cache, so that diff, blame and
+     *  merge, which often read the same blob more than once, read it only
+     *  once; others are copied out to a temporary file and mapped. */
+    private static Diff.Lines blobLines(String hash) {
+        if (hash == null) {
+            return new Diff.Lines(ByteBuffer.allocate(0));
+        }
+        byte[] small = ObjectStore.read(hash, ObjectStore.BLOB, SMALL_BLOB);
+        if (small != null) {
+            return new Diff.Lines(ByteBuffer.wrap(small).asReadOnlyBuffer());
+        }
+        File file = Utils.tempFile();
+        try {
+            ObjectStore.copyBlob(hash, file);
+            return new Diff.Lines(Diff.map(file));
+        } finally {
+            file.delete();
+        }
     }
 
-    private static void validateMerge(String branchName) {
+    /** Moves the file SOURCE to TARGET, replacing it. */
+    private static void moveFile(File source, File target) {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void validateMerge(String branchName, Stage stage) {
         // 1. Check for staged additions or removals
-        Stage stage = Stage.load();
         if (!stage.getAddedFiles().isEmpty() || !stage.getRemovedFiles().isEmpty()) {
-            System.out.println("You have uncommitted changes.");
-            System.exit(0);
+            throw Utils.error("You have uncommitted changes.");
         }
 
         // 2. Check if the branch exists
         File branchFile = Utils.join(HEADS_DIR, branchName);
         if (!branchFile.exists()) {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+            throw Utils.error("A branch with that name does not exist.");
         }
 
         // 3. Check for merging a branch with itself
         if (branchName.equals(getHeadBranchName())) {
-            System.out.println("Cannot merge a branch with itself.");
-            System.exit(0);
+            throw Utils.error("Cannot merge a branch with itself.");
         }
 
         // 4. Untracked file check (safety first!)
@@ -671,14 +1095,15 @@ public class Repository {
         Commit givenCommit = getCommitFromHash(givenHash);
         Commit headCommit = getHeadCommit();
         
-        List<String> cwdFiles = Utils.plainFilenamesIn(CWD);
-        for (String file : cwdFiles) {
+        List<String> untracked = new ArrayList<>();
+        Tree.diff(headCommit.getTree(), givenCommit.getTree(), (file, oldBlob, newBlob) -> {
             // If file is untracked in current but tracked in the branch we're merging in
-            if (!headCommit.getSnapshots().containsKey(file) 
-                && givenCommit.getSnapshots().containsKey(file)) {
-                System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                System.exit(0);
+            if (oldBlob == null && join(CWD, file).isFile()) {
+                untracked.add(file);
             }
+        });
+        if (!untracked.isEmpty()) {
+            throw Utils.error("There is an untracked file in the way; delete it, or add and commit it first.");
         }
     }
 }
@@ -0,0 +1,141 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static gitlet.Utils.join;
+
+/** The lock that commands changing a repository hold while they run, so
+ *  that two gitlet processes never update the index or refs at once.
+ *
+ *  It is an OS lock on .gitlet/lock, taken with FileChannel.lock, so it is
+ *  released when its process exits, however that happens, and a crashed
+ *  process never leaves it stuck. Threads of one process are kept apart
+ *  by a lock of their own, and a thread that holds the lock may take it
+ *  again. A command waits for the lock for at most the "lock.timeout"
+ *  setting, in milliseconds (DEFAULT_TIMEOUT by default), before giving
+ *  up.
+ *
+ *  Commands that only read, such as log and status, do not take the lock.
+ *  Files are replaced by renaming (see Utils.writeContents), so such a
+ *  command always reads whole files. The worst it can see is one write of
+ *  a command but not its next. Those that would save the index's cached
+ *  stat data do so only if the lock is free (see Stage.saveStats).
+ *
+ *  @author Jiehao Guan
+ */
+class RepositoryLock implements AutoCloseable {
+
+    /** The file locked. */
+    static final File LOCK_FILE = join(Repository.GITLET_DIR, "lock");
+
+    /** Default time to wait for the lock, in milliseconds. */
+    private static final long DEFAULT_TIMEOUT = 10_000;
+    /** Longest pause between attempts to lock the file, in milliseconds. */
+    private static final long MAX_BACKOFF = 100;
+
+    /** Keeps threads of this process apart, and counts nested holds. */
+    private static final ReentrantLock THREADS = new ReentrantLock();
+    /** The lock on LOCK_FILE while THREADS is held, and its channel. */
+    private static FileChannel channel;
+    private static FileLock fileLock;
+
+    /** A handle whose close releases one hold of the lock. */
+    private RepositoryLock() {
+    }
+
+    /** Takes the lock, waiting up to the lock.timeout setting for it.
+     *  Throws a GitletException if it stays taken that long. */
+    static RepositoryLock acquire() {
+        long timeout = Utils.numberSetting(
+            "lock.timeout", DEFAULT_TIMEOUT, Long.MIN_VALUE, Long.MAX_VALUE);
+        if (!lock(timeout)) {
+            throw Utils.error("Another gitlet process is updating the repository; "
+                              + "timed out after %d ms.", timeout);
+        }
+        return new RepositoryLock();
+    }
+
+    /** Takes the lock if it is free, and otherwise returns null. */
+    static RepositoryLock tryAcquire() {
+        return lock(0) ? new RepositoryLock() : null;
+    }
+
+    /** Releases this hold of the lock. */
+    @Override
+    public void close() {
+        if (THREADS.getHoldCount() == 1) {
+            try {
+                fileLock.release();
+                channel.close();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            } finally {
+                fileLock = null;
+                channel = null;
+            }
+        }
+        THREADS.unlock();
+    }
+
+    /** Takes the lock, waiting up to TIMEOUT milliseconds for it, and
+     *  returns true if it got it. Commands that found the file locked by
+     *  another process are counted in the lock.waits metric. */
+    private static boolean lock(long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            if (!THREADS.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw Utils.error("Interrupted.");
+        }
+        if (THREADS.getHoldCount() > 1) {
+            return true;
+        }
+        FileChannel file = null;
+        try {
+            file = FileChannel.open(LOCK_FILE.toPath(), StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE);
+            for (long backoff = 1; ; backoff = Math.min(2 * backoff, MAX_BACKOFF)) {
+                FileLock taken = file.tryLock();
+                if (taken != null) {
+                    channel = file;
+                    fileLock = taken;
+                    file = null;
+                    return true;
+                }
+                if (backoff == 1) {
+                    Metrics.increment("lock.waits");
+                }
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) {
+                    return false;
+                }
+                Thread.sleep(Math.min(backoff, left));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw Utils.error("Interrupted.");
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException excp) {
+                    /* Nothing was locked through it. */
+                }
+            }
+            if (fileLock == null) {
+                THREADS.unlock();
+            }
+        }
+    }
+}
@@ -2,15 +2,48 @@ package gitlet;
 
 import java.io.File;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
-public class Stage implements Serializable {
+/** The staging area, stored in .gitlet/index.
+ *
+ *  Besides the files staged for addition and removal, the index caches the
+ *  stat data of working files (see FileStat) along with the blob ids their
+ *  contents hashed to, so that commands comparing the working directory
+ *  with a commit only re-hash files whose stat data changed. As in git, an
+ *  entry whose file was modified no earlier than the index was written is
+ *  not trusted, since the file may have changed again within the same
+ *  timestamp tick.
+ *
+ *  The index is written in a binary encoding (see encode). An index written
+ *  with Java serialization by an earlier version is still read, and is
+ *  converted the next time the staging area is saved.
+ */
+public class Stage implements Serializable, Dumpable {
+
+    /** Pinned so that an index written by earlier versions still loads. */
+    private static final long serialVersionUID = -3808093070757793302L;
+
+    /** Magic bytes and version that start the encoding of the index. */
+    private static final byte[] INDEX_HEADER = {'g', 'l', 'i', 2};
+    /** Version 1 of the index, which had no stat data. */
+    private static final int INDEX_VERSION_NO_STATS = 1;
+
     /** Map of fileName -> blob SHA-1 for addition */
     private TreeMap<String, String> addedFiles = new TreeMap<>();
     /** Set of files to be removed (for the 'rm' command) */
     private TreeSet<String> removedFiles = new TreeSet<>();
+    /** Map of fileName -> cached stat data of the working file */
+    private transient TreeMap<String, FileStat> stats = new TreeMap<>();
+    /** Modification time of the index when it was loaded, in nanoseconds */
+    private transient long indexTime;
+    /** True if stats changed since the index was loaded */
+    private transient boolean statsChanged;
+    /** Contents of the index when it was loaded, or null if it was absent */
+    private transient byte[] loaded;
 
     public void add(String fileName, String blobHash) {
         addedFiles.put(fileName, blobHash);
@@ -42,10 +75,73 @@ public class Stage implements Serializable {
         removedFiles.clear();
     }
 
+    /** Returns the blob id of the contents of FILE, the working file named
+     *  FILENAME, or null if it does not exist. FILE is only read if its stat
+     *  data differs from that cached, and the result is cached in turn. May
+     *  be called from several threads at once. */
+    public String workingHash(String fileName, File file) {
+        FileStat current = FileStat.of(file);
+        if (current == null) {
+            forget(fileName);
+            return null;
+        }
+        FileStat cached;
+        synchronized (this) {
+            cached = stats.get(fileName);
+        }
+        if (cached != null && cached.sameFile(current) && current.mtime < indexTime) {
+            return cached.blob;
+        }
+        String blobHash = ObjectStore.hashBlob(file);
+        synchronized (this) {
+            stats.put(fileName, current.withBlob(blobHash));
+            statsChanged = true;
+        }
+        return blobHash;
+    }
+
+    /** Records that FILE, the working file named FILENAME, was just written
+     *  with the contents of the blob BLOBHASH. May be called from several
+     *  threads at once. */
+    public void recordWrite(String fileName, File file, String blobHash) {
+        FileStat current = FileStat.of(file);
+        if (current != null) {
+            synchronized (this) {
+                stats.put(fileName, current.withBlob(blobHash));
+                statsChanged = true;
+            }
+        }
+    }
+
+    /** Drops the cached stat data of the working file named FILENAME,
+     *  which was just deleted. */
+    public synchronized void forget(String fileName) {
+        if (stats.remove(fileName) != null) {
+            statsChanged = true;
+        }
+    }
+
     /** Persistence: Saves the staging area to the .gitlet directory */
     public void save() {
         File index = Utils.join(Repository.GITLET_DIR, "index");
-        Utils.writeObject(index, this);
+        Utils.writeContents(index, encode());
+    }
+
+    /** Saves the cached stat data if it changed, for commands that only
+     *  read the repository. It is only a cache, so rather than wait for the
+     *  repository lock, or overwrite an index that another process saved
+     *  since this one was loaded, it is dropped. */
+    public void saveStats() {
+        if (!statsChanged) {
+            return;
+        }
+        try (RepositoryLock lock = RepositoryLock.tryAcquire()) {
+            File index = Utils.join(Repository.GITLET_DIR, "index");
+            if (lock != null
+                && Arrays.equals(loaded, index.exists() ? Utils.readContents(index) : null)) {
+                save();
+            }
+        }
     }
 
     /** Persistence: Loads the staging area from disk */
@@ -54,6 +150,87 @@ public class Stage implements Serializable {
         if (!index.exists()) {
             return new Stage();
         }
-        return Utils.readObject(index, Stage.class);
+        byte[] contents = Utils.readContents(index);
+        Stage result = decode(ByteBuffer.wrap(contents));
+        result.indexTime = index.lastModified() * 1_000_000L;
+        result.loaded = contents;
+        return result;
+    }
+
+    @Override
+    public void dump() {
+        System.out.printf("added: %s%nremoved: %s%nstat entries: %d%n", addedFiles,
+                          removedFiles, stats.size());
+    }
+
+    /** Returns the encoding of this staging area:
+     *      header (4 bytes) | number of additions (4) |
+     *      (file name | blob id) for each addition |
+     *      number of removals (4) | file name for each removal |
+     *      number of stat entries (4) |
+     *      (file name | size (8) | mtime (8) | inode (8) | blob id) for each. */
+    byte[] encode() {
+        Codec.Writer out = new Codec.Writer(
+            16 + 64 * (addedFiles.size() + removedFiles.size()) + 80 * stats.size());
+        out.putBytes(INDEX_HEADER);
+        out.putInt(addedFiles.size());
+        for (Map.Entry<String, String> entry : addedFiles.entrySet()) {
+            out.putString(entry.getKey());
+            out.putHash(entry.getValue());
+        }
+        out.putInt(removedFiles.size());
+        for (String fileName : removedFiles) {
+            out.putString(fileName);
+        }
+        out.putInt(stats.size());
+        for (Map.Entry<String, FileStat> entry : stats.entrySet()) {
+            FileStat stat = entry.getValue();
+            out.putString(entry.getKey());
+            out.putLong(stat.size);
+            out.putLong(stat.mtime);
+            out.putLong(stat.inode);
+            out.putHash(stat.blob);
+        }
+        return out.toByteArray();
+    }
+
+    /** Returns the staging area encoded in BUF, which may also be an index
+     *  written with Java serialization by an earlier version. */
+    static Stage decode(ByteBuffer buf) {
+        if (Codec.isJavaSerialized(buf)) {
+            Stage result = Utils.deserialize(Codec.remaining(buf), Stage.class);
+            result.stats = new TreeMap<>();
+            return result;
+        }
+        for (int i = 0; i < INDEX_HEADER.length - 1; i += 1) {
+            if (buf.get() != INDEX_HEADER[i]) {
+                throw Utils.error("The index file is corrupt.");
+            }
+        }
+        int version = buf.get();
+        if (version != INDEX_VERSION_NO_STATS && version != INDEX_HEADER[3]) {
+            throw Utils.error("Unknown index version %d.", version);
+        }
+        Stage result = new Stage();
+        int added = buf.getInt();
+        for (int i = 0; i < added; i += 1) {
+            String fileName = Codec.getString(buf);
+            result.addedFiles.put(fileName, Codec.getHash(buf));
+        }
+        int removed = buf.getInt();
+        for (int i = 0; i < removed; i += 1) {
+            result.removedFiles.add(Codec.getString(buf));
+        }
+        if (version != INDEX_VERSION_NO_STATS) {
+            int cached = buf.getInt();
+            for (int i = 0; i < cached; i += 1) {
+                String fileName = Codec.getString(buf);
+                long size = buf.getLong();
+                long mtime = buf.getLong();
+                long inode = buf.getLong();
+                result.stats.put(fileName, new FileStat(size, mtime, inode, Codec.getHash(buf)));
+            }
+        }
+        return result;
     }
 }
\ No newline at end of file
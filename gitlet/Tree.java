@@ -0,0 +1,354 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+
+/** A tree object: the listing of one directory of a snapshot, mapping
+ *  each name in it to the blob of a file or the tree of a subdirectory.
+ *
+ *  Trees are stored in the object store like blobs, named by the hash of
+ *  their encoding, so two snapshots in which a directory is the same share
+ *  its tree, and comparing two directories takes one comparison of their
+ *  hashes however much they hold. A commit names only its root tree;
+ *  committing a change rewrites just the trees on the paths to the files
+ *  changed (see update), and diff skips subtrees whose hashes agree.
+ *
+ *  Tracked file names are paths relative to the repository root, with
+ *  '/' separating directories. Directories exist only as long as they hold
+ *  a file, so the only empty tree is the root of an empty snapshot. That
+ *  tree, EMPTY_ID, is never stored, since every reader knows it.
+ *
+ *  @author Jiehao Guan
+ */
+class Tree {
+
+    /** Kinds of entries. */
+    static final byte FILE = 'f';
+    static final byte DIR = 'd';
+
+    /** Version byte that starts the encoding of a tree. */
+    private static final int ENCODING_VERSION = 1;
+
+    /** The empty tree, the root tree of the initial commit, and its id. */
+    private static final Tree EMPTY = new Tree(new TreeMap<>());
+    static final String EMPTY_ID = Utils.sha1((Object) EMPTY.encode());
+
+    /** An entry of a tree: its kind and the id of its blob or tree. */
+    static class Entry {
+        final byte kind;
+        final String hash;
+
+        Entry(byte kind, String hash) {
+            this.kind = kind;
+            this.hash = hash;
+        }
+
+        boolean isDir() {
+            return kind == DIR;
+        }
+    }
+
+    /** Receives the differences found by diff. */
+    interface Visitor {
+        /** Called for the file PATH, whose blob is OLDBLOB in the first
+         *  tree and NEWBLOB in the second, either being null where the file
+         *  is absent. */
+        void visit(String path, String oldBlob, String newBlob);
+    }
+
+    /** Receives the files found by merge. */
+    interface MergeVisitor {
+        /** Called for the file PATH, whose blob is BASE in the common
+         *  ancestor, OURS in the current branch and THEIRS in the other,
+         *  each being null where the file is absent. */
+        void visit(String path, String base, String ours, String theirs);
+    }
+
+    /** Name -> entry, in name order. */
+    private final TreeMap<String, Entry> _entries;
+
+    /** A tree holding ENTRIES, which it takes over. */
+    private Tree(TreeMap<String, Entry> entries) {
+        _entries = entries;
+    }
+
+    /** Returns an unsaved tree listing FILES, which maps names to blob
+     *  ids, as the files of one directory. */
+    static Tree ofFiles(Map<String, String> files) {
+        TreeMap<String, Entry> entries = new TreeMap<>();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            entries.put(file.getKey(), new Entry(FILE, file.getValue()));
+        }
+        return new Tree(entries);
+    }
+
+    /** Returns the entries of this tree, by name. */
+    Map<String, Entry> entries() {
+        return Collections.unmodifiableMap(_entries);
+    }
+
+    /** Returns the tree with the given full HASH. */
+    static Tree load(String hash) {
+        if (hash.equals(EMPTY_ID)) {
+            return EMPTY;
+        }
+        Tree result = ObjectCache.instance().get(hash, Tree.class);
+        if (result == null) {
+            ByteBuffer encoded = ObjectStore.readBuffer(hash, ObjectStore.TREE);
+            int size = encoded.remaining();
+            result = decode(encoded);
+            ObjectCache.instance().put(hash, result, size);
+        }
+        return result;
+    }
+
+    /** Stores this tree unless it is already stored, and returns its id. */
+    String save() {
+        byte[] contents = encode();
+        String hash = Utils.sha1((Object) contents);
+        if (!ObjectStore.contains(hash)) {
+            ObjectStore.write(hash, ObjectStore.TREE, contents);
+        }
+        return hash;
+    }
+
+    /** Returns the id of the root tree of the snapshot FILES, which maps
+     *  file paths to blob ids, storing every tree it needs. */
+    static String write(Map<String, String> files) {
+        return update(EMPTY_ID, new TreeMap<>(files));
+    }
+
+    /** Returns the id of the root tree obtained from the tree ROOT by
+     *  applying CHANGES, which maps file paths to their new blob ids, or to
+     *  null for files to remove. Only the trees on the paths to the changed
+     *  files are read and written. */
+    static String update(String root, SortedMap<String, String> changes) {
+        if (changes.isEmpty()) {
+            return root;
+        }
+        TreeMap<String, Entry> entries = new TreeMap<>(load(root)._entries);
+        /* Group the changes by their first path component. */
+        TreeMap<String, TreeMap<String, String>> subdirs = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    entries.remove(path);
+                } else {
+                    entries.put(path, new Entry(FILE, change.getValue()));
+                }
+            } else {
+                subdirs.computeIfAbsent(path.substring(0, slash), k -> new TreeMap<>())
+                    .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, TreeMap<String, String>> subdir : subdirs.entrySet()) {
+            Entry old = entries.get(subdir.getKey());
+            String child = update(old != null && old.isDir() ? old.hash : EMPTY_ID,
+                                  subdir.getValue());
+            if (child.equals(EMPTY_ID)) {
+                /* A file may have taken the place of the directory. */
+                if (old != null && old.isDir()) {
+                    entries.remove(subdir.getKey());
+                }
+            } else {
+                entries.put(subdir.getKey(), new Entry(DIR, child));
+            }
+        }
+        if (entries.isEmpty()) {
+            return EMPTY_ID;
+        }
+        return new Tree(entries).save();
+    }
+
+    /** Adds every file under the tree ROOT to FILES, mapping its path,
+     *  prefixed by PREFIX, to its blob id. */
+    static void flatten(String root, String prefix, Map<String, String> files) {
+        for (Map.Entry<String, Entry> entry : load(root)._entries.entrySet()) {
+            String path = prefix + entry.getKey();
+            if (entry.getValue().isDir()) {
+                flatten(entry.getValue().hash, path + "/", files);
+            } else {
+                files.put(path, entry.getValue().hash);
+            }
+        }
+    }
+
+    /** Reports to VISITOR the path, prefixed by PREFIX, and blob id of each
+     *  file under the tree ROOT, skipping the subtrees whose ids are in
+     *  SEEN and adding to SEEN those it reads. Walking many snapshots with
+     *  one SEEN reads each distinct tree once. */
+    static void walk(String root, String prefix, Set<String> seen,
+                     BiConsumer<String, String> visitor) {
+        if (!seen.add(root)) {
+            return;
+        }
+        for (Map.Entry<String, Entry> entry : load(root)._entries.entrySet()) {
+            String path = prefix + entry.getKey();
+            if (entry.getValue().isDir()) {
+                walk(entry.getValue().hash, path + "/", seen, visitor);
+            } else {
+                visitor.accept(path, entry.getValue().hash);
+            }
+        }
+    }
+
+    /** Returns the blob id of the file PATH in the tree ROOT, or null if
+     *  it has no such file. Only the trees along PATH are read. */
+    static String lookup(String root, String path) {
+        String tree = root;
+        int start = 0;
+        while (true) {
+            int slash = path.indexOf('/', start);
+            String name = path.substring(start, slash < 0 ? path.length() : slash);
+            Entry entry = load(tree)._entries.get(name);
+            if (entry == null || entry.isDir() != (slash >= 0)) {
+                return null;
+            }
+            if (slash < 0) {
+                return entry.hash;
+            }
+            tree = entry.hash;
+            start = slash + 1;
+        }
+    }
+
+    /** Reports to VISITOR, directory by directory in name order, each file
+     *  whose blob differs between the trees OLDTREE and NEWTREE, either of
+     *  which may be null for an empty tree. Subtrees with equal ids are
+     *  skipped unread. */
+    static void diff(String oldTree, String newTree, Visitor visitor) {
+        diff(oldTree, newTree, "", visitor);
+    }
+
+    /** As for diff, with PREFIX in front of every path reported. */
+    private static void diff(String oldTree, String newTree, String prefix, Visitor visitor) {
+        if (oldTree != null && oldTree.equals(newTree)) {
+            return;
+        }
+        Map<String, Entry> before = oldTree == null ? EMPTY._entries : load(oldTree)._entries;
+        Map<String, Entry> after = newTree == null ? EMPTY._entries : load(newTree)._entries;
+        TreeSet<String> names = new TreeSet<>(before.keySet());
+        names.addAll(after.keySet());
+        for (String name : names) {
+            Entry a = before.get(name);
+            Entry b = after.get(name);
+            if (a != null && b != null && a.kind == b.kind && a.hash.equals(b.hash)) {
+                continue;
+            }
+            String path = prefix + name;
+            String oldDir = dirOf(a);
+            String newDir = dirOf(b);
+            if (oldDir != null || newDir != null) {
+                diff(oldDir, newDir, path + "/", visitor);
+            }
+            String oldBlob = blobOf(a);
+            String newBlob = blobOf(b);
+            if (oldBlob != null || newBlob != null) {
+                visitor.visit(path, oldBlob, newBlob);
+            }
+        }
+    }
+
+    /** Reports to VISITOR each file whose blob is not the same in all of
+     *  the trees BASE, OURS and THEIRS, any of which may be null for an
+     *  empty tree, except where the result of a three-way merge is plainly
+     *  OURS. Subtrees are compared by id before being read: one where OURS
+     *  and THEIRS agree, or that THEIRS left as in BASE, is skipped
+     *  unread, and one that OURS left as in BASE is compared only between
+     *  OURS and THEIRS, with diff. So the work done tracks the size of the
+     *  changes on either side, not the size of the trees. */
+    static void merge(String base, String ours, String theirs, MergeVisitor visitor) {
+        merge(base, ours, theirs, "", visitor);
+    }
+
+    /** As for merge, with PREFIX in front of every path reported. */
+    private static void merge(String base, String ours, String theirs, String prefix,
+                              MergeVisitor visitor) {
+        if (Objects.equals(ours, theirs) || Objects.equals(base, theirs)) {
+            return;
+        }
+        if (Objects.equals(base, ours)) {
+            diff(ours, theirs, prefix, (path, oldBlob, newBlob) ->
+                visitor.visit(path, oldBlob, oldBlob, newBlob));
+            return;
+        }
+        Map<String, Entry> b = base == null ? EMPTY._entries : load(base)._entries;
+        Map<String, Entry> o = ours == null ? EMPTY._entries : load(ours)._entries;
+        Map<String, Entry> t = theirs == null ? EMPTY._entries : load(theirs)._entries;
+        TreeSet<String> names = new TreeSet<>(b.keySet());
+        names.addAll(o.keySet());
+        names.addAll(t.keySet());
+        for (String name : names) {
+            Entry be = b.get(name);
+            Entry oe = o.get(name);
+            Entry te = t.get(name);
+            String path = prefix + name;
+            String baseDir = dirOf(be);
+            String oursDir = dirOf(oe);
+            String theirsDir = dirOf(te);
+            if (baseDir != null || oursDir != null || theirsDir != null) {
+                merge(baseDir, oursDir, theirsDir, path + "/", visitor);
+            }
+            String baseBlob = blobOf(be);
+            String oursBlob = blobOf(oe);
+            String theirsBlob = blobOf(te);
+            if (!Objects.equals(oursBlob, theirsBlob) && !Objects.equals(baseBlob, theirsBlob)) {
+                visitor.visit(path, baseBlob, oursBlob, theirsBlob);
+            }
+        }
+    }
+
+    /** Returns the tree id of ENTRY if it is a directory, else null. */
+    private static String dirOf(Entry entry) {
+        return entry != null && entry.isDir() ? entry.hash : null;
+    }
+
+    /** Returns the blob id of ENTRY if it is a file, else null. */
+    private static String blobOf(Entry entry) {
+        return entry != null && !entry.isDir() ? entry.hash : null;
+    }
+
+    /** Returns the encoding of this tree:
+     *      version (1 byte) | number of entries (4) |
+     *      (kind (1) | name | id) for each entry,
+     *  with entries in name order. */
+    byte[] encode() {
+        Codec.Writer out = new Codec.Writer(8 + _entries.size() * 48);
+        out.putByte(ENCODING_VERSION);
+        out.putInt(_entries.size());
+        for (Map.Entry<String, Entry> entry : _entries.entrySet()) {
+            out.putByte(entry.getValue().kind);
+            out.putString(entry.getKey());
+            out.putHash(entry.getValue().hash);
+        }
+        return out.toByteArray();
+    }
+
+    /** Returns the tree encoded in BUF. */
+    static Tree decode(ByteBuffer buf) {
+        int version = buf.get();
+        if (version != ENCODING_VERSION) {
+            throw Utils.error("Unknown tree encoding %d.", version);
+        }
+        int n = buf.getInt();
+        TreeMap<String, Entry> entries = new TreeMap<>();
+        for (int i = 0; i < n; i += 1) {
+            byte kind = buf.get();
+            if (kind != FILE && kind != DIR) {
+                throw Utils.error("Corrupt tree entry.");
+            }
+            String name = Codec.getString(buf);
+            entries.put(name, new Entry(kind, Codec.getHash(buf)));
+        }
+        return new Tree(entries);
+    }
+}
@@ -1,6 +1,7 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -10,13 +11,18 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Formatter;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 
 /** Assorted utilities.
@@ -88,6 +94,21 @@ class Utils {
         return restrictedDelete(new File(file));
     }
 
+    /** Deletes FILE, and everything under it if it is a directory, if it
+     *  exists.  Throws IllegalArgumentException in case of problems. */
+    static void deleteDirectory(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /* READING AND WRITING FILE CONTENTS */
 
     /** Return the entire contents of FILE as a byte array.  FILE must
@@ -113,26 +134,64 @@ class Utils {
 
     /** Write the result of concatenating the bytes in CONTENTS to FILE,
      *  creating or overwriting it as needed.  Each object in CONTENTS may be
-     *  either a String or a byte array.  Throws IllegalArgumentException
-     *  in case of problems. */
+     *  either a String or a byte array.  The contents go to a temporary
+     *  file in the repository's temporary directory (see tempFile), that is
+     *  then renamed over FILE, so FILE
+     *  is never seen half written; they are synced first if the fsync
+     *  policy syncs all writes (see Fsync).  Throws
+     *  IllegalArgumentException in case of problems. */
     static void writeContents(File file, Object... contents) {
+        writeContents(file, Fsync.ALL, contents);
+    }
+
+    /** As for writeContents, syncing the contents if writes at LEVEL are
+     *  synced under the fsync policy. */
+    static void writeContents(File file, Fsync level, Object... contents) {
+        File temp = null;
         try {
             if (file.isDirectory()) {
                 throw
                     new IllegalArgumentException("cannot overwrite directory");
             }
-            BufferedOutputStream str =
-                new BufferedOutputStream(Files.newOutputStream(file.toPath()));
-            for (Object obj : contents) {
-                if (obj instanceof byte[]) {
-                    str.write((byte[]) obj);
-                } else {
-                    str.write(((String) obj).getBytes(StandardCharsets.UTF_8));
+            File dir = file.getAbsoluteFile().getParentFile();
+            temp = tempFile();
+            try (BufferedOutputStream str =
+                     new BufferedOutputStream(Files.newOutputStream(temp.toPath()))) {
+                for (Object obj : contents) {
+                    if (obj instanceof byte[]) {
+                        str.write((byte[]) obj);
+                    } else {
+                        str.write(((String) obj).getBytes(StandardCharsets.UTF_8));
+                    }
                 }
             }
-            str.close();
+            boolean sync = level.enabled();
+            if (sync) {
+                Fsync.sync(temp);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            if (sync) {
+                Fsync.syncDirectory(dir);
+            }
         } catch (IOException | ClassCastException excp) {
             throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /** Returns a new empty file in .gitlet/tmp. That directory is on the
+     *  same file system as the rest of the repository, so the file can be
+     *  renamed over any file in it, and temporary files never appear among
+     *  the files of other directories. */
+    static File tempFile() {
+        try {
+            return File.createTempFile("tmp", null, Repository.TMP_DIR);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
     }
 
@@ -221,6 +280,75 @@ class Utils {
     }
 
 
+    /** Return an object of type T deserialized from BYTES, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+
+    /* SETTINGS */
+
+    /** Settings sent along with the command being run, by the client of a
+     *  daemon: the gitlet.* system properties and GITLET_* environment
+     *  variables of the client, by name.  They override this process's. */
+    private static volatile Map<String, String> commandSettings = Map.of();
+
+    /** Return the value of the setting NAME: the system property gitlet.NAME
+     *  if it is set, and otherwise the environment variable GITLET_NAME, with
+     *  NAME upper-cased and its dots replaced by underscores.  Return
+     *  DEFAULTVALUE if neither is set.  Settings sent with the current
+     *  command are looked at first in the same way. */
+    static String setting(String name, String defaultValue) {
+        String property = "gitlet." + name;
+        String variable = "GITLET_" + name.toUpperCase().replace('.', '_');
+        String value = commandSettings.get(property);
+        if (value == null) {
+            value = commandSettings.get(variable);
+        }
+        if (value == null) {
+            value = System.getProperty(property);
+        }
+        if (value == null) {
+            value = System.getenv(variable);
+        }
+        return value == null ? defaultValue : value;
+    }
+
+    /** Return the value of the setting NAME, found as by setting, as a
+     *  whole number, or DEFAULTVALUE if it is not set.  Throw a
+     *  GitletException if it is not a whole number from MIN to MAX. */
+    static long numberSetting(String name, long defaultValue, long min, long max) {
+        long value;
+        try {
+            value = Long.parseLong(setting(name, Long.toString(defaultValue)));
+        } catch (NumberFormatException excp) {
+            throw error("Invalid %s setting.", name);
+        }
+        if (value < min || value > max) {
+            throw error("Invalid %s setting.", name);
+        }
+        return value;
+    }
+
+    /** Use SETTINGS, which maps gitlet.* system property names and GITLET_*
+     *  environment variable names to values, as the settings sent with the
+     *  command being run, until replaced. */
+    static void setCommandSettings(Map<String, String> settings) {
+        commandSettings = Map.copyOf(settings);
+    }
+
+
 
     /* MESSAGES AND ERROR REPORTING */
 
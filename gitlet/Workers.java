@@ -0,0 +1,129 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/** Runs work over a bounded pool of threads. Work bound by file I/O uses
+ *  the "io.threads" setting (gitlet.io.threads or GITLET_IO_THREADS), which
+ *  defaults to DEFAULT_THREADS, a queue depth most SSDs serve well; work
+ *  bound by the CPU, such as hashing, uses one thread per core. Setting
+ *  io.threads to 1 runs file I/O on the caller's thread.
+ *
+ *  Work is always run to completion, and a failure is reported as the
+ *  exception thrown for the earliest failing item, so that the outcome does
+ *  not depend on how the threads were scheduled.
+ *
+ *  @author Jiehao Guan
+ */
+class Workers {
+
+    /** Default number of threads for file I/O. */
+    private static final int DEFAULT_THREADS = 8;
+    /** Lists shorter than this are not worth handing to other threads. */
+    private static final int MIN_PARALLEL = 16;
+
+    /** Returns the number of threads to use for file I/O. */
+    static int threads() {
+        return Math.max(1, (int) Utils.numberSetting(
+            "io.threads", DEFAULT_THREADS, Integer.MIN_VALUE, Integer.MAX_VALUE));
+    }
+
+    /** Returns the number of threads to use for work bound by the CPU. */
+    static int cpus() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Applies OP to each of ITEMS, using up to threads() threads. If OP
+     *  throws for any item, rethrows what it threw for the first of them in
+     *  the order of ITEMS once every item has been processed. */
+    static <T> void forEach(List<T> items, Consumer<? super T> op) {
+        map(items, threads(), item -> {
+            op.accept(item);
+            return null;
+        });
+    }
+
+    /** Returns the results of applying OP to each of ITEMS, in the same
+     *  order, using up to THREADS threads. Failures are reported as for
+     *  forEach. */
+    static <T, R> List<R> map(List<T> items, int threads,
+                              Function<? super T, ? extends R> op) {
+        List<R> results = new ArrayList<>(items.size());
+        threads = Math.min(threads, items.size());
+        if (threads <= 1 || items.size() < MIN_PARALLEL) {
+            RuntimeException failure = null;
+            for (T item : items) {
+                R result = null;
+                try {
+                    result = op.apply(item);
+                } catch (RuntimeException excp) {
+                    if (failure == null) {
+                        failure = excp;
+                    }
+                }
+                results.add(result);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return results;
+        }
+
+        ExecutorService pool = pool(threads);
+        try {
+            List<Future<? extends R>> futures = new ArrayList<>(items.size());
+            for (T item : items) {
+                futures.add(pool.submit(() -> op.apply(item)));
+            }
+            RuntimeException failure = null;
+            for (Future<? extends R> future : futures) {
+                R result = null;
+                try {
+                    result = future.get();
+                } catch (ExecutionException excp) {
+                    if (failure == null) {
+                        failure = unwrap(excp);
+                    }
+                } catch (InterruptedException excp) {
+                    Thread.currentThread().interrupt();
+                    throw Utils.error("Interrupted.");
+                }
+                results.add(result);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Returns a pool of THREADS daemon threads, which the caller must shut
+     *  down. */
+    static ExecutorService pool(int threads) {
+        return Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "gitlet-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Returns the exception behind EXCP as an unchecked exception. */
+    static RuntimeException unwrap(ExecutionException excp) {
+        Throwable cause = excp.getCause();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IllegalStateException(cause);
+    }
+}
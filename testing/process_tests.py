@@ -0,0 +1,156 @@
+import sys, time
+from subprocess import run, Popen, PIPE, DEVNULL, TimeoutExpired
+from os import environ, mkdir
+from os.path import exists, join
+from tempfile import mkdtemp
+from shutil import rmtree
+import fcntl
+
+USAGE = """\
+Usage: python3 process_tests.py [TEST ...]
+
+Runs the tests of gitlet that involve more than one process at a time,
+which the tester, running one command after another, cannot express:
+
+   lock     A writer that finds the repository lock held by another
+            process times out with an error, or waits for it.
+   daemon   Commands run through a running "gitlet daemon", which
+            "gitlet daemon stop" then shuts down.
+
+Runs all of them if no TEST is named.  Each test runs in a fresh
+repository in a temporary directory, using gitlet.Main from the CLASSPATH,
+with assertions enabled.  Exits with status 1 if any test fails."""
+
+JAVA = ["java", "-ea", "gitlet.Main"]
+
+# Seconds allowed to any one gitlet command.
+TIMEOUT = 30
+
+class Failure(Exception):
+    pass
+
+def environment(settings):
+    """The environment of this process, plus the GITLET_* variables in the
+    dict SETTINGS."""
+    env = dict(environ)
+    env.update(settings or {})
+    return env
+
+def gitlet(repo, *args, settings=None):
+    """Runs gitlet with ARGS in REPO and returns its completed process."""
+    return run(JAVA + list(args), cwd=repo, env=environment(settings),
+               stdout=PIPE, stderr=PIPE, universal_newlines=True,
+               timeout=TIMEOUT)
+
+def start(repo, *args, settings=None):
+    """Starts gitlet with ARGS in REPO, returning the running process."""
+    return Popen(JAVA + list(args), cwd=repo, env=environment(settings),
+                 stdout=PIPE, stderr=PIPE, universal_newlines=True)
+
+def check(condition, message):
+    if not condition:
+        raise Failure(message)
+
+def expect(result, output, what):
+    """Checks that the completed process RESULT, from running WHAT,
+    printed OUTPUT."""
+    check(result.stdout == output,
+          "{}: expected {!r}, got {!r}".format(what, output, result.stdout))
+
+def staged(repo):
+    """Returns the staged files that status lists in REPO."""
+    lines = gitlet(repo, "status").stdout.split("\n")
+    first = lines.index("=== Staged Files ===") + 1
+    return lines[first:lines.index("", first)]
+
+def test_lock(repo):
+    with open(join(repo, ".gitlet", "lock"), "a+b") as lock:
+        fcntl.lockf(lock, fcntl.LOCK_EX)
+        expect(gitlet(repo, "add", "f.txt",
+                      settings={"GITLET_LOCK_TIMEOUT": "300"}),
+               "Another gitlet process is updating the repository; "
+               "timed out after 300 ms.\n", "add with the lock held")
+        check(staged(repo) == [], "add staged f.txt without the lock")
+        waiting = start(repo, "add", "f.txt",
+                        settings={"GITLET_LOCK_TIMEOUT": "20000"})
+        time.sleep(1.5)
+        check(waiting.poll() is None, "add did not wait for the lock")
+        fcntl.lockf(lock, fcntl.LOCK_UN)
+    out, err = waiting.communicate(timeout=TIMEOUT)
+    check(waiting.returncode == 0 and out == "",
+          "add after the lock was freed printed {!r}".format(out + err))
+    check(staged(repo) == ["f.txt"], "add did not stage f.txt once it had the lock")
+
+def test_daemon(repo):
+    socket = join(repo, ".gitlet", "daemon.sock")
+    daemon = Popen(JAVA + ["daemon"], cwd=repo, stdout=DEVNULL, stderr=DEVNULL)
+    try:
+        deadline = time.time() + TIMEOUT
+        while not exists(socket) and daemon.poll() is None \
+              and time.time() < deadline:
+            time.sleep(0.1)
+        check(exists(socket), "the daemon did not create its socket")
+        expect(gitlet(repo, "daemon"),
+               "A gitlet daemon is already running in this repository.\n",
+               "a second daemon")
+        expect(gitlet(repo, "add", "f.txt"), "", "add through the daemon")
+        expect(gitlet(repo, "commit", "through the daemon"), "",
+               "commit through the daemon")
+        # The daemon's object cache is warm from the first log, whereas a
+        # process of its own would start with an empty one.
+        stats = {"GITLET_STATS": "true"}
+        gitlet(repo, "log", settings=stats)
+        forwarded = gitlet(repo, "log", settings=stats)
+        check("through the daemon" in forwarded.stdout,
+              "log through the daemon lacks the commit made through it")
+        check("cache.hits" in forwarded.stderr
+              and "cache.misses" not in forwarded.stderr,
+              "log did not run in the daemon: {!r}".format(forwarded.stderr))
+        expect(gitlet(repo, "log", settings={"GITLET_DAEMON_FORWARD": "false"}),
+               forwarded.stdout, "log run without the daemon")
+        expect(gitlet(repo, "daemon", "stop"), "", "daemon stop")
+        daemon.wait(timeout=TIMEOUT)
+        check(not exists(socket), "the socket outlived the daemon")
+        expect(gitlet(repo, "log"), forwarded.stdout,
+               "log after the daemon stopped")
+    finally:
+        if daemon.poll() is None:
+            daemon.kill()
+            daemon.wait()
+
+TESTS = {
+    "lock": test_lock,
+    "daemon": test_daemon,
+}
+
+def main(names):
+    for name in names:
+        if name not in TESTS:
+            print(USAGE, file=sys.stderr)
+            sys.exit(1)
+    failed = 0
+    base = mkdtemp(prefix="gitlet-process-")
+    try:
+        for name in names or TESTS:
+            print("{}:".format(name))
+            repo = join(base, name)
+            mkdir(repo)
+            try:
+                expect(gitlet(repo, "init"), "", "init")
+                with open(join(repo, "f.txt"), "w") as f:
+                    f.write("This is a wug.\n")
+                TESTS[name](repo)
+                print("OK")
+            except (Failure, TimeoutExpired) as excp:
+                failed += 1
+                print("ERROR ({})".format(excp))
+    finally:
+        rmtree(base, ignore_errors=True)
+    total = len(names or TESTS)
+    if failed:
+        print("\nRan {} tests. {} passed.".format(total, total - failed))
+        sys.exit(1)
+    print("\nRan {} tests. All passed.".format(total))
+
+if __name__ == "__main__":
+    main(sys.argv[1:])